@@ -0,0 +1,213 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.IOException;
+
+import com.thoughtworks.qdox.builder.Builder;
+import com.thoughtworks.qdox.library.AbstractClassLibrary;
+import com.thoughtworks.qdox.model.JavaClass;
+import com.thoughtworks.qdox.model.JavaPackage;
+import com.thoughtworks.qdox.parser.structs.AnnoDef;
+import com.thoughtworks.qdox.parser.structs.ClassDef;
+import com.thoughtworks.qdox.parser.structs.PackageDef;
+import com.thoughtworks.qdox.parser.structs.TypeDef;
+
+/**
+ * QDox library of the binary classes of the project classpath. Unlike the QDox <code>ClassLoaderLibrary</code>,
+ * classes are not loaded: their declarations are read from the class files by
+ * {@link IndexedClassLoader#getClassHeader(String)}, so no static initializer runs and nothing is linked.
+ * <p>
+ * Only the declaration of the classes is modeled: modifiers, super types, annotation types (without their
+ * values) and nested classes. Binary classes have no fields nor methods on this library.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ClassFileLibrary extends AbstractClassLibrary
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient IndexedClassLoader classLoader;
+
+	/**
+	 * @param parent library searched for the classes not found on the classpath
+	 * @param classLoader class loader over the classpath, used to find and read the class files
+	 */
+	public ClassFileLibrary(AbstractClassLibrary parent, IndexedClassLoader classLoader)
+	{
+		super(parent);
+		this.classLoader = classLoader;
+	}
+
+	@Override
+	protected JavaClass resolveJavaClass(String name)
+	{
+		ClassHeader header = findClassHeader(name);
+		if (header == null)
+		{
+			return null;
+		}
+		String binaryName = header.getName();
+		try
+		{
+			while (header.getOuterName() != null)
+			{
+				ClassHeader outer = classLoader.getClassHeader(header.getOuterName());
+				if (outer == null)
+				{
+					break;
+				}
+				header = outer;
+			}
+			Builder builder = getModelBuilder();
+			int index = header.getName().lastIndexOf('.');
+			if (index > 0)
+			{
+				builder.addPackage(new PackageDef(header.getName().substring(0, index)));
+			}
+			addClass(builder, header);
+			return builder.getSource().getClassByName(binaryName);
+		}
+		catch (IOException e)
+		{
+			// not a valid class file, like the QDox class loader library does for classes that can not be loaded
+			return null;
+		}
+	}
+
+	@Override
+	protected JavaPackage resolveJavaPackage(String name)
+	{
+		return null;
+	}
+
+	@Override
+	protected boolean containsClassReference(String name)
+	{
+		return findClassHeader(name) != null;
+	}
+
+	/**
+	 * Find the class file of a class. Nested classes may be named like <code>java.util.Map.Entry</code>, so the
+	 * last dots are tried as nested class separators.
+	 */
+	private ClassHeader findClassHeader(String name)
+	{
+		try
+		{
+			String binaryName = name;
+			while (true)
+			{
+				ClassHeader header = classLoader.getClassHeader(binaryName);
+				if (header != null)
+				{
+					return header;
+				}
+				int index = binaryName.lastIndexOf('.');
+				if (index < 0)
+				{
+					return null;
+				}
+				binaryName = binaryName.substring(0, index) + '$' + binaryName.substring(index + 1);
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private void addClass(Builder builder, ClassHeader header) throws IOException
+	{
+		for (String annotation : header.getAnnotations())
+		{
+			builder.addAnnotation(new AnnoDef(new TypeDef(annotation)));
+		}
+		String name = header.getName();
+		ClassDef classDef = new ClassDef(name.substring(Math.max(name.lastIndexOf('.'), name.lastIndexOf('$')) + 1));
+		if (header.hasAccess(ClassHeader.ACC_ANNOTATION))
+		{
+			classDef.setType(ClassDef.ANNOTATION_TYPE);
+		}
+		else if (header.hasAccess(ClassHeader.ACC_INTERFACE))
+		{
+			classDef.setType(ClassDef.INTERFACE);
+		}
+		else if (header.hasAccess(ClassHeader.ACC_ENUM))
+		{
+			classDef.setType(ClassDef.ENUM);
+		}
+		addModifiers(classDef, header);
+		if (header.hasAccess(ClassHeader.ACC_INTERFACE))
+		{
+			for (String superInterface : header.getInterfaces())
+			{
+				classDef.getExtends().add(new TypeDef(superInterface));
+			}
+		}
+		else
+		{
+			if (header.getSuperName() != null)
+			{
+				classDef.getExtends().add(new TypeDef(header.getSuperName()));
+			}
+			for (String implemented : header.getInterfaces())
+			{
+				classDef.getImplements().add(new TypeDef(implemented));
+			}
+		}
+
+		builder.beginClass(classDef);
+		for (String memberClass : header.getMemberClasses())
+		{
+			ClassHeader member = classLoader.getClassHeader(memberClass);
+			if (member != null)
+			{
+				addClass(builder, member);
+			}
+		}
+		builder.endClass();
+	}
+
+	private static void addModifiers(ClassDef classDef, ClassHeader header)
+	{
+		if (header.hasAccess(ClassHeader.ACC_PUBLIC))
+		{
+			classDef.getModifiers().add("public");
+		}
+		if (header.hasAccess(ClassHeader.ACC_PROTECTED))
+		{
+			classDef.getModifiers().add("protected");
+		}
+		if (header.hasAccess(ClassHeader.ACC_PRIVATE))
+		{
+			classDef.getModifiers().add("private");
+		}
+		if (header.hasAccess(ClassHeader.ACC_ABSTRACT))
+		{
+			classDef.getModifiers().add("abstract");
+		}
+		if (header.hasAccess(ClassHeader.ACC_STATIC))
+		{
+			classDef.getModifiers().add("static");
+		}
+		if (header.hasAccess(ClassHeader.ACC_FINAL))
+		{
+			classDef.getModifiers().add("final");
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+
+import com.thoughtworks.qdox.builder.ModelBuilderFactory;
+import com.thoughtworks.qdox.library.ClassLibrary;
+import com.thoughtworks.qdox.library.ClassLibraryBuilder;
+import com.thoughtworks.qdox.library.ClassNameLibrary;
+import com.thoughtworks.qdox.library.ErrorHandler;
+import com.thoughtworks.qdox.library.SourceFolderLibrary;
+import com.thoughtworks.qdox.library.SourceLibrary;
+import com.thoughtworks.qdox.model.JavaSource;
+import com.thoughtworks.qdox.writer.ModelWriterFactory;
+
+/**
+ * Builds the QDox libraries in the same order of the QDox <code>SortedClassLibraryBuilder</code> (sources,
+ * source folders, binary classes and class names), but reading the binary classes through a
+ * {@link ClassFileLibrary} instead of loading them.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ClassFileLibraryBuilder implements ClassLibraryBuilder
+{
+	private static final long serialVersionUID = 1L;
+
+	private final ClassNameLibrary classNameLibrary;
+	private final ClassFileLibrary classFileLibrary;
+	private final SourceFolderLibrary sourceFolderLibrary;
+	private final SourceLibrary sourceLibrary;
+
+	/**
+	 * @param classLoader class loader over the classpath of the binary classes
+	 */
+	public ClassFileLibraryBuilder(IndexedClassLoader classLoader)
+	{
+		classNameLibrary = new ClassNameLibrary();
+		classFileLibrary = new ClassFileLibrary(classNameLibrary, classLoader);
+		sourceFolderLibrary = new SourceFolderLibrary(classFileLibrary);
+		sourceLibrary = new SourceLibrary(sourceFolderLibrary);
+	}
+
+	/**
+	 * Not supported: binary classes are only read from the classpath given on the constructor.
+	 */
+	@Override
+	public ClassLibraryBuilder appendClassLoader(ClassLoader classLoader)
+	{
+		throw new UnsupportedOperationException("Binary classes are read from the project classpath only");
+	}
+
+	/**
+	 * Not supported: binary classes are only read from the classpath given on the constructor.
+	 */
+	@Override
+	public ClassLibraryBuilder appendDefaultClassLoaders()
+	{
+		throw new UnsupportedOperationException("Binary classes are read from the project classpath only");
+	}
+
+	@Override
+	public ClassLibraryBuilder appendSourceFolder(File sourceFolder)
+	{
+		sourceFolderLibrary.addSourceFolder(sourceFolder);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder appendSource(InputStream stream) throws IOException
+	{
+		sourceLibrary.addSource(stream);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder appendSource(Reader reader)
+	{
+		sourceLibrary.addSource(reader);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder appendSource(URL url) throws IOException
+	{
+		sourceLibrary.addSource(url);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder appendSource(File file) throws IOException
+	{
+		sourceLibrary.addSource(file);
+		return this;
+	}
+
+	@Override
+	public JavaSource addSource(InputStream stream) throws IOException
+	{
+		return sourceLibrary.addSource(stream);
+	}
+
+	@Override
+	public JavaSource addSource(Reader reader)
+	{
+		return sourceLibrary.addSource(reader);
+	}
+
+	@Override
+	public JavaSource addSource(URL url) throws IOException
+	{
+		return sourceLibrary.addSource(url);
+	}
+
+	@Override
+	public JavaSource addSource(File file) throws IOException
+	{
+		return sourceLibrary.addSource(file);
+	}
+
+	@Override
+	public ClassLibraryBuilder setDebugLexer(boolean debugLexer)
+	{
+		sourceFolderLibrary.setDebugLexer(debugLexer);
+		sourceLibrary.setDebugLexer(debugLexer);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder setDebugParser(boolean debugParser)
+	{
+		sourceFolderLibrary.setDebugParser(debugParser);
+		sourceLibrary.setDebugParser(debugParser);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder setEncoding(String encoding)
+	{
+		sourceFolderLibrary.setEncoding(encoding);
+		sourceLibrary.setEncoding(encoding);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder setErrorHander(ErrorHandler errorHandler)
+	{
+		sourceFolderLibrary.setErrorHandler(errorHandler);
+		sourceLibrary.setErrorHandler(errorHandler);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder setModelBuilderFactory(ModelBuilderFactory factory)
+	{
+		classNameLibrary.setModelBuilderFactory(factory);
+		classFileLibrary.setModelBuilderFactory(factory);
+		sourceFolderLibrary.setModelBuilderFactory(factory);
+		sourceLibrary.setModelBuilderFactory(factory);
+		return this;
+	}
+
+	@Override
+	public ClassLibraryBuilder setModelWriterFactory(ModelWriterFactory factory)
+	{
+		classNameLibrary.setModelWriterFactory(factory);
+		classFileLibrary.setModelWriterFactory(factory);
+		sourceFolderLibrary.setModelWriterFactory(factory);
+		sourceLibrary.setModelWriterFactory(factory);
+		return this;
+	}
+
+	@Override
+	public ClassLibrary getClassLibrary()
+	{
+		return sourceLibrary;
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Declaration of a class, read straight from its class file: modifiers, super types, annotations and nested
+ * classes. Fields, methods and code are skipped. The class is never loaded, so its static initializers do not
+ * run and its dependencies do not need to be on the classpath.
+ * <p>
+ * Class names are binary names, like <code>java.util.Map$Entry</code>.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ClassHeader
+{
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_PRIVATE = 0x0002;
+	public static final int ACC_PROTECTED = 0x0004;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_INTERFACE = 0x0200;
+	public static final int ACC_ABSTRACT = 0x0400;
+	public static final int ACC_ANNOTATION = 0x2000;
+	public static final int ACC_ENUM = 0x4000;
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private final String name;
+	private final int access;
+	private final String superName;
+	private final List<String> interfaces;
+	private final List<String> annotations;
+	private final String outerName;
+	private final List<String> memberClasses;
+
+	private ClassHeader(String name, int access, String superName, List<String> interfaces, List<String> annotations,
+	    String outerName, List<String> memberClasses)
+	{
+		this.name = name;
+		this.access = access;
+		this.superName = superName;
+		this.interfaces = interfaces;
+		this.annotations = annotations;
+		this.outerName = outerName;
+		this.memberClasses = memberClasses;
+	}
+
+	/**
+	 * Parse a class file.
+	 *
+	 * @param classFile content of the class file
+	 * @return the class declaration
+	 * @throws IOException if the content is not a valid class file
+	 */
+	public static ClassHeader read(byte[] classFile) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a class file");
+		}
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		int poolSize = in.readUnsignedShort();
+		String[] strings = new String[poolSize];
+		int[] classNames = new int[poolSize];
+		for (int i = 1; i < poolSize; i++)
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+				case 1: // Utf8
+					strings[i] = in.readUTF();
+					break;
+				case 7: // Class
+					classNames[i] = in.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					in.skipBytes(2);
+					break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.skipBytes(4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag: " + tag);
+			}
+		}
+		ConstantPool pool = new ConstantPool(strings, classNames);
+
+		int access = in.readUnsignedShort();
+		String name = pool.getClassName(in.readUnsignedShort());
+		String superName = pool.getClassName(in.readUnsignedShort());
+		int interfacesCount = in.readUnsignedShort();
+		List<String> interfaces = new ArrayList<String>(interfacesCount);
+		for (int i = 0; i < interfacesCount; i++)
+		{
+			interfaces.add(pool.getClassName(in.readUnsignedShort()));
+		}
+		skipMembers(in); // fields
+		skipMembers(in); // methods
+
+		List<String> annotations = new ArrayList<String>();
+		List<String> memberClasses = new ArrayList<String>();
+		String outerName = null;
+		int attributesCount = in.readUnsignedShort();
+		for (int i = 0; i < attributesCount; i++)
+		{
+			String attribute = pool.getString(in.readUnsignedShort());
+			int length = in.readInt();
+			if ("RuntimeVisibleAnnotations".equals(attribute) || "RuntimeInvisibleAnnotations".equals(attribute))
+			{
+				int count = in.readUnsignedShort();
+				for (int j = 0; j < count; j++)
+				{
+					annotations.add(readAnnotation(in, pool));
+				}
+			}
+			else if ("InnerClasses".equals(attribute))
+			{
+				int count = in.readUnsignedShort();
+				for (int j = 0; j < count; j++)
+				{
+					String innerClass = pool.getClassName(in.readUnsignedShort());
+					String outerClass = pool.getClassName(in.readUnsignedShort());
+					in.readUnsignedShort(); // simple name
+					int innerAccess = in.readUnsignedShort();
+					if (outerClass == null)
+					{
+						// local or anonymous class
+						continue;
+					}
+					if (innerClass.equals(name))
+					{
+						// the class file flags of a member class miss private, protected and static
+						outerName = outerClass;
+						access = innerAccess;
+					}
+					else if (outerClass.equals(name))
+					{
+						memberClasses.add(innerClass);
+					}
+				}
+			}
+			else
+			{
+				in.skipBytes(length);
+			}
+		}
+		return new ClassHeader(name, access, superName, interfaces, annotations, outerName, memberClasses);
+	}
+
+	/**
+	 * Binary name of the class.
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Access flags of the class. For member classes, the flags of the source declaration.
+	 */
+	public int getAccess()
+	{
+		return access;
+	}
+
+	public boolean hasAccess(int flag)
+	{
+		return (access & flag) != 0;
+	}
+
+	/**
+	 * Binary name of the super class, or null for <code>java.lang.Object</code>.
+	 */
+	public String getSuperName()
+	{
+		return superName;
+	}
+
+	public List<String> getInterfaces()
+	{
+		return Collections.unmodifiableList(interfaces);
+	}
+
+	/**
+	 * Binary names of the annotations of the class, including the ones not visible at runtime.
+	 */
+	public List<String> getAnnotations()
+	{
+		return Collections.unmodifiableList(annotations);
+	}
+
+	/**
+	 * Binary name of the class declaring this one, or null for top level, local and anonymous classes.
+	 */
+	public String getOuterName()
+	{
+		return outerName;
+	}
+
+	/**
+	 * Binary names of the classes declared by this one.
+	 */
+	public List<String> getMemberClasses()
+	{
+		return Collections.unmodifiableList(memberClasses);
+	}
+
+	private static void skipMembers(DataInputStream in) throws IOException
+	{
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++)
+		{
+			in.skipBytes(6); // access, name and descriptor
+			int attributesCount = in.readUnsignedShort();
+			for (int j = 0; j < attributesCount; j++)
+			{
+				in.skipBytes(2);
+				in.skipBytes(in.readInt());
+			}
+		}
+	}
+
+	private static String readAnnotation(DataInputStream in, ConstantPool pool) throws IOException
+	{
+		String type = pool.getDescriptorClassName(in.readUnsignedShort());
+		int pairs = in.readUnsignedShort();
+		for (int i = 0; i < pairs; i++)
+		{
+			in.skipBytes(2); // element name
+			skipElementValue(in, pool);
+		}
+		return type;
+	}
+
+	private static void skipElementValue(DataInputStream in, ConstantPool pool) throws IOException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case 'e':
+				in.skipBytes(4);
+				break;
+			case '@':
+				readAnnotation(in, pool);
+				break;
+			case '[':
+				int count = in.readUnsignedShort();
+				for (int i = 0; i < count; i++)
+				{
+					skipElementValue(in, pool);
+				}
+				break;
+			default:
+				// constants and classes
+				in.skipBytes(2);
+		}
+	}
+
+	private static class ConstantPool
+	{
+		private final String[] strings;
+		private final int[] classNames;
+
+		private ConstantPool(String[] strings, int[] classNames)
+		{
+			this.strings = strings;
+			this.classNames = classNames;
+		}
+
+		private String getString(int index) throws IOException
+		{
+			if (index <= 0 || index >= strings.length || strings[index] == null)
+			{
+				throw new IOException("Invalid constant pool index: " + index);
+			}
+			return strings[index];
+		}
+
+		private String getClassName(int index) throws IOException
+		{
+			if (index == 0)
+			{
+				return null;
+			}
+			if (index >= classNames.length || classNames[index] == 0)
+			{
+				throw new IOException("Invalid class index: " + index);
+			}
+			return getString(classNames[index]).replace('/', '.');
+		}
+
+		/**
+		 * Read a type descriptor, like <code>Ljava/lang/Deprecated;</code>.
+		 */
+		private String getDescriptorClassName(int index) throws IOException
+		{
+			String descriptor = getString(index);
+			if (descriptor.length() < 3 || descriptor.charAt(0) != 'L' || !descriptor.endsWith(";"))
+			{
+				throw new IOException("Invalid type descriptor: " + descriptor);
+			}
+			return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.execution.MavenSession;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.logging.AbstractLogEnabled;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.cruxframework.crux.plugin.maven.incremental.PackageIndex;
+
+/**
+ * Shares the project class loaders among the goals of a build session. Each class loader keeps its archives
+ * open, so it is created once for each classpath and closed when not needed anymore, instead of left to the
+ * garbage collector.
+ * <p>
+ * Goals {@link #acquire(MavenSession, Collection, PackageIndex) acquire} a lease of a class loader and must
+ * close it when done. Idle class loaders are kept for the next goals of the session. A class loader is closed
+ * when its last lease is closed and it was retired: because an archive of its classpath changed, because a new
+ * session started, or through {@link #invalidate()}. The class loaders still pooled are closed when the plugin
+ * is disposed.
+ * <p>
+ * Archives are identified by their path, size and modification time. Classpath folders are identified by
+ * their path only: classes are read from them on demand, but a class already loaded is not read again. Goals
+ * that run many times on the same session (like <code>watch</code>) must {@link #invalidate()} the pool when
+ * the folders change.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+@Component(role = ClassLoaderPool.class)
+public class ClassLoaderPool extends AbstractLogEnabled implements Disposable
+{
+	private WeakReference<MavenSession> currentSession = new WeakReference<MavenSession>(null);
+	private final Map<List<File>, PooledClassLoader> classLoaders = new HashMap<List<File>, PooledClassLoader>();
+
+	/**
+	 * Retrieve a class loader over the given classpath, creating it if no class loader of the session matches it.
+	 *
+	 * @param session current build session
+	 * @param classpath classpath entries
+	 * @param index index of the archives folders, used when a new class loader is created
+	 * @return a lease of the class loader. It must be closed when the class loader is not needed anymore
+	 * @throws IOException if an archive could not be indexed
+	 */
+	public Lease acquire(MavenSession session, Collection<File> classpath, PackageIndex index) throws IOException
+	{
+		List<File> key = new ArrayList<File>(classpath);
+		List<Long> fingerprint = getFingerprint(key);
+		synchronized (this)
+		{
+			if (currentSession.get() != session)
+			{
+				retireAll();
+				currentSession = new WeakReference<MavenSession>(session);
+			}
+			PooledClassLoader pooled = classLoaders.get(key);
+			if (pooled != null && pooled.fingerprint.equals(fingerprint))
+			{
+				pooled.references++;
+				return new Lease(pooled);
+			}
+			if (pooled != null)
+			{
+				getLogger().debug("Classpath archives changed. Creating a new class loader.");
+				retire(pooled);
+			}
+			pooled = new PooledClassLoader(key, fingerprint, new IndexedClassLoader(key, index, ClassLoader.getSystemClassLoader()));
+			pooled.references++;
+			classLoaders.put(key, pooled);
+			return new Lease(pooled);
+		}
+	}
+
+	/**
+	 * Retire all class loaders, so the next requests create new ones. Class loaders in use are closed when
+	 * released.
+	 */
+	public synchronized void invalidate()
+	{
+		retireAll();
+	}
+
+	@Override
+	public synchronized void dispose()
+	{
+		retireAll();
+	}
+
+	private void retireAll()
+	{
+		for (PooledClassLoader pooled : new ArrayList<PooledClassLoader>(classLoaders.values()))
+		{
+			retire(pooled);
+		}
+	}
+
+	private void retire(PooledClassLoader pooled)
+	{
+		classLoaders.remove(pooled.key);
+		pooled.retired = true;
+		if (pooled.references == 0)
+		{
+			close(pooled);
+		}
+	}
+
+	private synchronized void release(PooledClassLoader pooled)
+	{
+		pooled.references--;
+		if (pooled.references == 0 && pooled.retired)
+		{
+			close(pooled);
+		}
+	}
+
+	private void close(PooledClassLoader pooled)
+	{
+		try
+		{
+			pooled.classLoader.close();
+		}
+		catch (IOException e)
+		{
+			getLogger().warn("Error closing the project class loader: " + e.getMessage());
+		}
+	}
+
+	private static List<Long> getFingerprint(List<File> classpath)
+	{
+		List<Long> fingerprint = new ArrayList<Long>(classpath.size() * 2);
+		for (File file : classpath)
+		{
+			if (file.isFile())
+			{
+				fingerprint.add(file.length());
+				fingerprint.add(file.lastModified());
+			}
+			else
+			{
+				fingerprint.add(-1L);
+				fingerprint.add(-1L);
+			}
+		}
+		return fingerprint;
+	}
+
+	private static class PooledClassLoader
+	{
+		private final List<File> key;
+		private final List<Long> fingerprint;
+		private final IndexedClassLoader classLoader;
+		private int references;
+		private boolean retired;
+
+		private PooledClassLoader(List<File> key, List<Long> fingerprint, IndexedClassLoader classLoader)
+		{
+			this.key = key;
+			this.fingerprint = fingerprint;
+			this.classLoader = classLoader;
+		}
+	}
+
+	/**
+	 * A class loader in use by a goal.
+	 */
+	public class Lease implements Closeable
+	{
+		private final PooledClassLoader pooled;
+		private boolean closed;
+
+		private Lease(PooledClassLoader pooled)
+		{
+			this.pooled = pooled;
+		}
+
+		public IndexedClassLoader getClassLoader()
+		{
+			return pooled.classLoader;
+		}
+
+		/**
+		 * Give the class loader back to the pool. Calling it again has no effect.
+		 */
+		@Override
+		public void close()
+		{
+			synchronized (ClassLoaderPool.this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+			}
+			release(pooled);
+		}
+	}
+}
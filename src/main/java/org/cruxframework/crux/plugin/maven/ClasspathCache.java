@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Resource;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.AbstractLogEnabled;
+
+/**
+ * Keeps the classpaths built by the {@link ClasspathBuilder} for the whole build session, so the goals (and
+ * the many calls of each goal) share them. A classpath is built again if the project source roots, resources
+ * or resolved artifacts change. The cached classpaths are dropped when a new session starts.
+ * <p>
+ * Classpaths are immutable, so they can be shared by modules built in parallel.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+@Component(role = ClasspathCache.class)
+public class ClasspathCache extends AbstractLogEnabled
+{
+	@Requirement
+	private ClasspathBuilder classpathBuilder;
+
+	private WeakReference<MavenSession> currentSession = new WeakReference<MavenSession>(null);
+	private ConcurrentMap<Key, Collection<File>> classpaths = new ConcurrentHashMap<Key, Collection<File>>();
+
+	/**
+	 * Retrieve the classpath of the project, building it on the first request.
+	 *
+	 * @see ClasspathBuilder#buildClasspathList(MavenProject, String, Set, boolean, boolean)
+	 */
+	public Collection<File> getClasspath(MavenSession session, MavenProject project, String scope, Set<Artifact> artifacts,
+	    boolean isGenerator, boolean addSources) throws ClasspathBuilderException
+	{
+		ConcurrentMap<Key, Collection<File>> sessionClasspaths;
+		synchronized (this)
+		{
+			if (currentSession.get() != session)
+			{
+				classpaths = new ConcurrentHashMap<Key, Collection<File>>();
+				currentSession = new WeakReference<MavenSession>(session);
+			}
+			sessionClasspaths = classpaths;
+		}
+
+		Key key = new Key(project, scope, artifacts, isGenerator, addSources);
+		Collection<File> classpath = sessionClasspaths.get(key);
+		if (classpath != null)
+		{
+			return classpath;
+		}
+		classpath = Collections.unmodifiableSet(new LinkedHashSet<File>(
+			classpathBuilder.buildClasspathList(project, scope, artifacts, isGenerator, addSources)));
+		Collection<File> previous = sessionClasspaths.putIfAbsent(key, classpath);
+		if (previous != null)
+		{
+			return previous;
+		}
+		if (getLogger().isDebugEnabled())
+		{
+			getLogger().debug("Execution classpath of " + project.getId() + " (scope = " + scope + ", sources = " + addSources + "):");
+			for (File f : classpath)
+			{
+				getLogger().debug("   " + f.getAbsolutePath());
+			}
+		}
+		return classpath;
+	}
+
+	/**
+	 * Identifies a classpath. Projects and artifact sets are compared by identity: Maven creates a new
+	 * artifact set whenever the dependencies are resolved again. Source roots and resources are compared by
+	 * value, as goals may add new roots.
+	 */
+	private static class Key
+	{
+		private final MavenProject project;
+		private final String scope;
+		private final Set<Artifact> artifacts;
+		private final boolean isGenerator;
+		private final boolean addSources;
+		private final List<String> roots;
+		private final int hashCode;
+
+		private Key(MavenProject project, String scope, Set<Artifact> artifacts, boolean isGenerator, boolean addSources)
+		{
+			this.project = project;
+			this.scope = scope;
+			this.artifacts = artifacts;
+			this.isGenerator = isGenerator;
+			this.addSources = addSources;
+			this.roots = new ArrayList<String>();
+			roots.add(project.getBuild().getOutputDirectory());
+			roots.add(project.getBuild().getTestOutputDirectory());
+			roots.addAll(project.getCompileSourceRoots());
+			roots.add(File.pathSeparator);
+			roots.addAll(project.getTestCompileSourceRoots());
+			roots.add(File.pathSeparator);
+			addResources(project.getResources());
+			roots.add(File.pathSeparator);
+			addResources(project.getTestResources());
+			this.hashCode = 31 * (31 * (31 * System.identityHashCode(project) + scope.hashCode())
+				+ System.identityHashCode(artifacts)) + roots.hashCode() + (isGenerator ? 2 : 0) + (addSources ? 1 : 0);
+		}
+
+		private void addResources(List<Resource> resources)
+		{
+			for (Resource resource : resources)
+			{
+				roots.add(resource.getDirectory());
+			}
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return project == other.project && artifacts == other.artifacts && scope.equals(other.scope)
+				&& isGenerator == other.isGenerator && addSources == other.addSources && roots.equals(other.roots);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.cruxframework.crux.plugin.maven.incremental.PackageIndex;
+
+/**
+ * Class loader over the project classpath that only searches the archives containing the package of the
+ * requested class (or the folder of the requested resource), as given by a {@link PackageIndex}. A
+ * <code>URLClassLoader</code> searches every archive of the classpath, in order, until the class is found,
+ * which is slow on big classpaths, mostly for the many classes that are not found at all.
+ * <p>
+ * Classpath folders are not indexed, as they are modified by the build, and are always searched. The
+ * classpath order is kept: the first entry containing a class defines it.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class IndexedClassLoader extends ClassLoader implements Closeable
+{
+	private final List<Entry> unindexedEntries = new ArrayList<Entry>();
+	private final Map<String, List<Entry>> indexedEntries = new HashMap<String, List<Entry>>();
+	private final ConcurrentMap<String, List<Entry>> candidates = new ConcurrentHashMap<String, List<Entry>>();
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Set<String> definedPackages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, ClassHeader> parentHeaders = new ConcurrentHashMap<String, ClassHeader>();
+	private volatile boolean closed;
+
+	/**
+	 * @param classpath classpath entries
+	 * @param index index of the archives folders
+	 * @param parent parent class loader
+	 * @throws IOException if an archive could not be indexed
+	 */
+	public IndexedClassLoader(Collection<File> classpath, PackageIndex index, ClassLoader parent) throws IOException
+	{
+		super(parent);
+		for (File file : classpath)
+		{
+			Entry entry = new Entry(file, entries.size());
+			if (file.isDirectory())
+			{
+				entries.add(entry);
+				unindexedEntries.add(entry);
+			}
+			else if (file.isFile())
+			{
+				entries.add(entry);
+				for (String folder : index.getFolders(file))
+				{
+					if (PackageIndex.ALL_FOLDERS.equals(folder))
+					{
+						unindexedEntries.add(entry);
+						continue;
+					}
+					List<Entry> folderEntries = indexedEntries.get(folder);
+					if (folderEntries == null)
+					{
+						folderEntries = new ArrayList<Entry>(1);
+						indexedEntries.put(folder, folderEntries);
+					}
+					folderEntries.add(entry);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException
+	{
+		if (closed)
+		{
+			throw new ClassNotFoundException(name + " (class loader closed)");
+		}
+		String path = name.replace('.', '/') + ".class";
+		for (Entry entry : getCandidates(path))
+		{
+			byte[] bytes;
+			ProtectionDomain protectionDomain;
+			try
+			{
+				bytes = entry.read(path);
+				protectionDomain = (bytes == null) ? null : entry.getProtectionDomain();
+			}
+			catch (IOException e)
+			{
+				throw new ClassNotFoundException(name, e);
+			}
+			if (bytes != null)
+			{
+				definePackage(name);
+				return defineClass(name, bytes, 0, bytes.length, protectionDomain);
+			}
+		}
+		throw new ClassNotFoundException(name);
+	}
+
+	@Override
+	protected URL findResource(String name)
+	{
+		if (closed)
+		{
+			return null;
+		}
+		for (Entry entry : getCandidates(name))
+		{
+			URL url = entry.getResource(name);
+			if (url != null)
+			{
+				return url;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	protected Enumeration<URL> findResources(String name) throws IOException
+	{
+		List<URL> result = new ArrayList<URL>();
+		if (closed)
+		{
+			return Collections.enumeration(result);
+		}
+		for (Entry entry : getCandidates(name))
+		{
+			URL url = entry.getResource(name);
+			if (url != null)
+			{
+				result.add(url);
+			}
+		}
+		return Collections.enumeration(result);
+	}
+
+	/**
+	 * Read the declaration of a class from its class file, without loading it. The class file is searched like 
+	 * {@link #loadClass(String)} does: first on the parent class loader, then on the classpath. Declarations 
+	 * read from archives are kept for the life of this loader.
+	 *
+	 * @param className binary name of the class
+	 * @return the class declaration or null if the class is not found
+	 * @throws IOException if the class file could not be read
+	 */
+	public ClassHeader getClassHeader(String className) throws IOException
+	{
+		if (closed)
+		{
+			return null;
+		}
+		String path = className.replace('.', '/') + ".class";
+		ClassHeader header = parentHeaders.get(path);
+		if (header != null)
+		{
+			return header;
+		}
+		if (getParent() != null)
+		{
+			InputStream in = getParent().getResourceAsStream(path);
+			if (in != null)
+			{
+				try
+				{
+					header = ClassHeader.read(readFully(in));
+				}
+				finally
+				{
+					in.close();
+				}
+				parentHeaders.putIfAbsent(path, header);
+				return header;
+			}
+		}
+		for (Entry entry : getCandidates(path))
+		{
+			header = entry.getClassHeader(path);
+			if (header != null)
+			{
+				return header;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Close the archives opened by this loader. Classes and resources not loaded yet are not found anymore.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		IOException error = null;
+		for (Entry entry : entries)
+		{
+			try
+			{
+				entry.close();
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+
+	/**
+	 * Retrieve the entries that may contain the given path, in classpath order.
+	 */
+	private List<Entry> getCandidates(String path)
+	{
+		int index = path.lastIndexOf('/');
+		String folder = (index < 0) ? "" : path.substring(0, index);
+		List<Entry> result = candidates.get(folder);
+		if (result == null)
+		{
+			List<Entry> indexed = indexedEntries.get(folder);
+			if (indexed == null)
+			{
+				result = unindexedEntries;
+			}
+			else if (unindexedEntries.isEmpty())
+			{
+				result = indexed;
+			}
+			else
+			{
+				result = merge(indexed, unindexedEntries);
+			}
+			candidates.putIfAbsent(folder, result);
+		}
+		return result;
+	}
+
+	private static List<Entry> merge(List<Entry> first, List<Entry> second)
+	{
+		List<Entry> result = new ArrayList<Entry>(first.size() + second.size());
+		int i = 0;
+		int j = 0;
+		while (i < first.size() || j < second.size())
+		{
+			if (j == second.size() || (i < first.size() && first.get(i).position < second.get(j).position))
+			{
+				result.add(first.get(i++));
+			}
+			else
+			{
+				result.add(second.get(j++));
+			}
+		}
+		return result;
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+		{
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private void definePackage(String className)
+	{
+		int index = className.lastIndexOf('.');
+		if (index > 0)
+		{
+			String packageName = className.substring(0, index);
+			if (definedPackages.add(packageName))
+			{
+				try
+				{
+					definePackage(packageName, null, null, null, null, null, null, null);
+				}
+				catch (IllegalArgumentException e)
+				{
+					// already defined
+				}
+			}
+		}
+	}
+
+	private static class Entry
+	{
+		private final File file;
+		private final int position;
+		private JarFile jarFile;
+		private ProtectionDomain protectionDomain;
+		private ConcurrentMap<String, ClassHeader> headers;
+
+		private Entry(File file, int position)
+		{
+			this.file = file;
+			this.position = position;
+		}
+
+		private synchronized byte[] read(String path) throws IOException
+		{
+			InputStream in;
+			if (file.isDirectory())
+			{
+				File child = new File(file, path);
+				if (!child.isFile())
+				{
+					return null;
+				}
+				in = new FileInputStream(child);
+			}
+			else
+			{
+				ZipEntry zipEntry = getJarFile().getEntry(path);
+				if (zipEntry == null)
+				{
+					return null;
+				}
+				in = getJarFile().getInputStream(zipEntry);
+			}
+			try
+			{
+				return readFully(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		/**
+		 * Read a class declaration. Archives do not change while the loader is open, so their declarations are 
+		 * cached.
+		 */
+		private ClassHeader getClassHeader(String path) throws IOException
+		{
+			ConcurrentMap<String, ClassHeader> cache = null;
+			if (!file.isDirectory())
+			{
+				synchronized (this)
+				{
+					if (headers == null)
+					{
+						headers = new ConcurrentHashMap<String, ClassHeader>();
+					}
+					cache = headers;
+				}
+				ClassHeader header = cache.get(path);
+				if (header != null)
+				{
+					return header;
+				}
+			}
+			byte[] bytes = read(path);
+			if (bytes == null)
+			{
+				return null;
+			}
+			ClassHeader header = ClassHeader.read(bytes);
+			if (cache != null)
+			{
+				cache.putIfAbsent(path, header);
+			}
+			return header;
+		}
+
+		private synchronized URL getResource(String name)
+		{
+			try
+			{
+				if (file.isDirectory())
+				{
+					File child = new File(file, name);
+					return child.exists() ? child.toURI().toURL() : null;
+				}
+				if (getJarFile().getEntry(name) == null)
+				{
+					return null;
+				}
+				return new URL("jar:" + file.toURI().toURL() + "!/" + name);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+		}
+
+		private synchronized ProtectionDomain getProtectionDomain() throws MalformedURLException
+		{
+			if (protectionDomain == null)
+			{
+				protectionDomain = new ProtectionDomain(new CodeSource(file.toURI().toURL(), (Certificate[]) null), null);
+			}
+			return protectionDomain;
+		}
+
+		private JarFile getJarFile() throws IOException
+		{
+			if (jarFile == null)
+			{
+				jarFile = new JarFile(file, false);
+			}
+			return jarFile;
+		}
+
+		private synchronized void close() throws IOException
+		{
+			headers = null;
+			if (jarFile != null)
+			{
+				jarFile.close();
+				jarFile = null;
+			}
+		}
+	}
+}
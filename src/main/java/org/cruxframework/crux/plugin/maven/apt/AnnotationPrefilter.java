@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Processor;
+
+/**
+ * Find the source files that may contain any annotation handled by a set of processors, without
+ * parsing them. A file is a candidate when it contains the annotation simple name preceded by
+ * <code>@</code> or by <code>.</code> (qualified usages and imports). The check is conservative: a file
+ * mentioning the annotation only in a comment is still a candidate.
+ * <p>
+ * Types that only inherit an annotation (through {@link java.lang.annotation.Inherited}) do not
+ * mention it and are not selected.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class AnnotationPrefilter
+{
+	private static final int MAPPING_THRESHOLD = 16 * 1024;
+
+	private final List<byte[]> patterns;
+
+	private AnnotationPrefilter(List<byte[]> patterns)
+	{
+		this.patterns = patterns;
+	}
+
+	/**
+	 * Create a filter for the annotations supported by the given processors.
+	 *
+	 * @param processors annotation processors
+	 * @param charset source files encoding
+	 * @return the filter or null if the files can not be filtered (processors handling any annotation, or
+	 * an encoding not compatible with ASCII)
+	 */
+	public static AnnotationPrefilter create(Collection<? extends Processor> processors, Charset charset)
+	{
+		if ("A".getBytes(charset).length != 1)
+		{
+			return null;
+		}
+		Set<String> simpleNames = new LinkedHashSet<String>();
+		for (Processor processor : processors)
+		{
+			for (String annotationType : processor.getSupportedAnnotationTypes())
+			{
+				if (annotationType.endsWith("*"))
+				{
+					return null;
+				}
+				simpleNames.add(annotationType.substring(annotationType.lastIndexOf('.') + 1));
+			}
+		}
+		List<byte[]> patterns = new ArrayList<byte[]>(simpleNames.size());
+		for (String simpleName : simpleNames)
+		{
+			patterns.add(simpleName.getBytes(charset));
+		}
+		return new AnnotationPrefilter(patterns);
+	}
+
+	/**
+	 * Select the candidate files.
+	 * @param files source files
+	 * @return the files that may contain any of the annotations
+	 * @throws IOException
+	 */
+	public Set<File> filter(Collection<File> files) throws IOException
+	{
+		Set<File> candidates = new HashSet<File>();
+		for (File file : files)
+		{
+			if (isCandidate(file))
+			{
+				candidates.add(file);
+			}
+		}
+		return candidates;
+	}
+
+	public boolean isCandidate(File file) throws IOException
+	{
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = channel.size();
+			ByteBuffer content;
+			if (size >= MAPPING_THRESHOLD)
+			{
+				content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			else
+			{
+				content = ByteBuffer.allocate((int) size);
+				while (content.hasRemaining() && channel.read(content) >= 0)
+				{
+					// read the whole file
+				}
+				content.flip();
+			}
+			for (byte[] pattern : patterns)
+			{
+				if (contains(content, pattern))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	private static boolean contains(ByteBuffer content, byte[] pattern)
+	{
+		int limit = content.limit() - pattern.length;
+		byte first = pattern[0];
+		for (int i = 0; i <= limit; i++)
+		{
+			if (content.get(i) == first && matches(content, i, pattern) && isAnnotationUsage(content, i, pattern.length))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(ByteBuffer content, int offset, byte[] pattern)
+	{
+		for (int j = 1; j < pattern.length; j++)
+		{
+			if (content.get(offset + j) != pattern[j])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isAnnotationUsage(ByteBuffer content, int offset, int length)
+	{
+		int end = offset + length;
+		if (end < content.limit() && isIdentifierPart(content.get(end)))
+		{
+			return false;
+		}
+		int i = offset - 1;
+		while (i >= 0 && Character.isWhitespace(content.get(i)))
+		{
+			i--;
+		}
+		return i >= 0 && (content.get(i) == '@' || content.get(i) == '.');
+	}
+
+	private static boolean isIdentifierPart(byte b)
+	{
+		return b < 0 || Character.isJavaIdentifierPart((char) b);
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the time and the memory allocated by each phase of an annotation processing execution, and by
+ * each round of each processor. Allocated bytes are measured per thread, and are reported as -1 when the
+ * JVM can not measure them.
+ * <p>
+ * The collected metrics are written as a JSON document.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class AptMetrics
+{
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final long startTime = System.nanoTime();
+	private final Date startDate = new Date();
+	private final Map<String, Measures> phases = new LinkedHashMap<String, Measures>();
+	private final Map<String, List<Round>> processors = new LinkedHashMap<String, List<Round>>();
+	private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+	private final ThreadLocal<Measure> pendingCompilation = new ThreadLocal<Measure>();
+	private String mode = "up-to-date";
+
+	/**
+	 * Start measuring a phase. Phases with the same name are summed.
+	 *
+	 * @param phase phase name
+	 * @return the measure, that must be stopped by the same thread
+	 */
+	public Measure start(String phase)
+	{
+		return new Measure(phase);
+	}
+
+	/**
+	 * Add a value to a counter.
+	 */
+	public synchronized void count(String counter, long value)
+	{
+		Long current = counters.get(counter);
+		counters.put(counter, (current == null) ? value : current + value);
+	}
+
+	public synchronized void setMode(String mode)
+	{
+		this.mode = mode;
+	}
+
+	/**
+	 * Mark the start of a compilation on the current thread. The time until the first processing round
+	 * (parsing and entering the sources) is measured as the <code>parse-enter</code> phase.
+	 */
+	public void compilationStarted()
+	{
+		pendingCompilation.set(start("parse-enter"));
+	}
+
+	/**
+	 * Mark the end of a compilation on the current thread.
+	 */
+	public void compilationFinished()
+	{
+		roundStarted();
+	}
+
+	void roundStarted()
+	{
+		Measure measure = pendingCompilation.get();
+		if (measure != null)
+		{
+			pendingCompilation.remove();
+			measure.stop();
+		}
+	}
+
+	synchronized void processorRound(String processor, long nanos, long allocatedBytes, int rootElements)
+	{
+		List<Round> rounds = processors.get(processor);
+		if (rounds == null)
+		{
+			rounds = new ArrayList<Round>();
+			processors.put(processor, rounds);
+		}
+		rounds.add(new Round(nanos, allocatedBytes, rootElements));
+	}
+
+	/**
+	 * Write the metrics collected so far.
+	 *
+	 * @param file target file
+	 * @param project identification of the project
+	 * @throws IOException
+	 */
+	public synchronized void write(File file, String project) throws IOException
+	{
+		file.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			out.write("{\n");
+			out.write("  \"project\": " + quote(project) + ",\n");
+			out.write("  \"timestamp\": " + quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(startDate)) + ",\n");
+			out.write("  \"mode\": " + quote(mode) + ",\n");
+			out.write("  \"millis\": " + toMillis(System.nanoTime() - startTime) + ",\n");
+			out.write("  \"counters\": {");
+			for (Iterator<Map.Entry<String, Long>> it = counters.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry<String, Long> counter = it.next();
+				out.write("\n    " + quote(counter.getKey()) + ": " + counter.getValue() + (it.hasNext() ? "," : "\n  "));
+			}
+			out.write("},\n");
+			out.write("  \"phases\": {");
+			for (Iterator<Map.Entry<String, Measures>> it = phases.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry<String, Measures> phase = it.next();
+				Measures measures = phase.getValue();
+				out.write("\n    " + quote(phase.getKey()) + ": {\"count\": " + measures.count + ", \"millis\": " + toMillis(measures.nanos)
+						+ ", \"allocatedBytes\": " + measures.allocatedBytes + "}" + (it.hasNext() ? "," : "\n  "));
+			}
+			out.write("},\n");
+			out.write("  \"processors\": {");
+			for (Iterator<Map.Entry<String, List<Round>>> it = processors.entrySet().iterator(); it.hasNext();)
+			{
+				Map.Entry<String, List<Round>> processor = it.next();
+				writeProcessor(out, processor.getKey(), processor.getValue());
+				out.write(it.hasNext() ? "," : "\n  ");
+			}
+			out.write("}\n");
+			out.write("}\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void writeProcessor(Writer out, String processor, List<Round> rounds) throws IOException
+	{
+		long nanos = 0;
+		long allocatedBytes = 0;
+		StringBuilder roundsJson = new StringBuilder();
+		for (int i = 0; i < rounds.size(); i++)
+		{
+			Round round = rounds.get(i);
+			nanos += round.nanos;
+			allocatedBytes = sum(allocatedBytes, round.allocatedBytes);
+			roundsJson.append((i > 0) ? ",\n        " : "\n        ");
+			roundsJson.append("{\"millis\": ").append(toMillis(round.nanos)).append(", \"allocatedBytes\": ").append(round.allocatedBytes)
+				.append(", \"rootElements\": ").append(round.rootElements).append("}");
+		}
+		out.write("\n    " + quote(processor) + ": {\n");
+		out.write("      \"millis\": " + toMillis(nanos) + ",\n");
+		out.write("      \"allocatedBytes\": " + allocatedBytes + ",\n");
+		out.write("      \"rounds\": [" + roundsJson + "\n      ]\n");
+		out.write("    }");
+	}
+
+	private synchronized void add(String phase, long nanos, long allocatedBytes)
+	{
+		Measures measures = phases.get(phase);
+		if (measures == null)
+		{
+			measures = new Measures();
+			phases.put(phase, measures);
+		}
+		measures.count++;
+		measures.nanos += nanos;
+		measures.allocatedBytes = sum(measures.allocatedBytes, allocatedBytes);
+	}
+
+	/**
+	 * Retrieve the bytes allocated by the current thread so far.
+	 * @return allocated bytes or -1 if not supported by the JVM
+	 */
+	static long getAllocatedBytes()
+	{
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+			{
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	static long getAllocatedBytesSince(long start)
+	{
+		if (start < 0)
+		{
+			return -1;
+		}
+		long current = getAllocatedBytes();
+		return (current < 0) ? -1 : current - start;
+	}
+
+	private static long sum(long total, long value)
+	{
+		return (total < 0 || value < 0) ? -1 : total + value;
+	}
+
+	private static long toMillis(long nanos)
+	{
+		return nanos / 1000000L;
+	}
+
+	private static String quote(String value)
+	{
+		StringBuilder result = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				result.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				result.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+
+	public class Measure
+	{
+		private final String phase;
+		private final long start = System.nanoTime();
+		private final long startAllocatedBytes = getAllocatedBytes();
+
+		private Measure(String phase)
+		{
+			this.phase = phase;
+		}
+
+		public void stop()
+		{
+			add(phase, System.nanoTime() - start, getAllocatedBytesSince(startAllocatedBytes));
+		}
+	}
+
+	private static class Measures
+	{
+		private int count;
+		private long nanos;
+		private long allocatedBytes;
+	}
+
+	private static class Round
+	{
+		private final long nanos;
+		private final long allocatedBytes;
+		private final int rootElements;
+
+		private Round(long nanos, long allocatedBytes, int rootElements)
+		{
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+			this.rootElements = rootElements;
+		}
+	}
+}
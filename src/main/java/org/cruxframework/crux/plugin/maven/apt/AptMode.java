@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+/**
+ * How the annotation processors run.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public enum AptMode
+{
+	/**
+	 * Only run the processors (<code>-proc:only</code>). Project and generated sources are compiled later, by the 
+	 * compiler plugin.
+	 */
+	PROCESS_ONLY,
+
+	/**
+	 * Run the processors inside a full compilation of the project sources, compiling the generated sources in
+	 * the same compiler session. The compiler plugin then finds all classes up to date. Any change on the sources
+	 * or on the classpath compiles all sources again, as the dependencies among plain classes are not tracked.
+	 */
+	FUSED,
+
+	/**
+	 * Run the processors, like <code>PROCESS_ONLY</code>, and then compile only the generated sources, finding the 
+	 * project sources through the source path. The generated classes are written to the output folder and the 
+	 * generated sources folder is not added as a compile source root, so the compiler plugin only compiles the 
+	 * project sources.
+	 */
+	GENERATED
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read the constant pool of a class file to find the packages it references. Both the class constants and
+ * the type descriptors and signatures are inspected, so the result is a superset of the packages the compiler
+ * may need to load when it reads that class.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+class ClassFileReferences
+{
+	private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+	private static final String DESCRIPTOR_PREFIXES = "([;)<>:+-^";
+
+	private ClassFileReferences()
+	{
+	}
+
+	/**
+	 * Add the packages referenced by the class file to the given set.
+	 *
+	 * @param in class file content
+	 * @param packages packages found, in dotted form
+	 * @throws IOException
+	 */
+	static void collectPackages(DataInputStream in, Set<String> packages) throws IOException
+	{
+		if (in.readInt() != CLASS_FILE_MAGIC)
+		{
+			return;
+		}
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+		int count = in.readUnsignedShort();
+		String[] strings = new String[count];
+		List<Integer> classNames = new ArrayList<Integer>();
+		for (int i = 1; i < count; i++)
+		{
+			int tag = in.readUnsignedByte();
+			switch (tag)
+			{
+				case 1: // Utf8
+					strings[i] = in.readUTF();
+				break;
+				case 7: // Class
+					classNames.add(in.readUnsignedShort());
+				break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					in.skipBytes(2);
+				break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+				break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.skipBytes(4);
+				break;
+				case 5: // Long
+				case 6: // Double
+					in.skipBytes(8);
+					i++;
+				break;
+				default:
+					throw new IOException("Invalid constant pool tag: " + tag);
+			}
+		}
+
+		for (Integer index : classNames)
+		{
+			String name = strings[index];
+			if (name != null && !name.startsWith("["))
+			{
+				addPackage(name, packages);
+			}
+		}
+		for (String value : strings)
+		{
+			if (value != null && value.indexOf(';') > 0)
+			{
+				collectDescriptorPackages(value, packages);
+			}
+		}
+	}
+
+	private static void collectDescriptorPackages(String descriptor, Set<String> packages)
+	{
+		int length = descriptor.length();
+		for (int i = 0; i < length; i++)
+		{
+			if (descriptor.charAt(i) == 'L' && (i == 0 || DESCRIPTOR_PREFIXES.indexOf(descriptor.charAt(i - 1)) >= 0))
+			{
+				int end = i + 1;
+				while (end < length && descriptor.charAt(end) != ';' && descriptor.charAt(end) != '<')
+				{
+					end++;
+				}
+				if (end < length)
+				{
+					addPackage(descriptor.substring(i + 1, end), packages);
+				}
+				i = end;
+			}
+		}
+	}
+
+	private static void addPackage(String internalName, Set<String> packages)
+	{
+		int index = internalName.lastIndexOf('/');
+		if (index > 0)
+		{
+			packages.add(internalName.substring(0, index).replace('/', '.'));
+		}
+	}
+}
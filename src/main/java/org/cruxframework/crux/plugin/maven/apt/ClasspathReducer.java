@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.logging.AbstractLogEnabled;
+import org.cruxframework.crux.plugin.maven.incremental.ClasspathSelection;
+
+/**
+ * Select the classpath entries reachable from a set of packages. An archive is selected when it contains
+ * any required package, and the packages referenced by its classes are required too, until no more archives
+ * are selected. Folders are always kept.
+ * <p>
+ * The packages found in each archive are kept in memory for the whole build, and the last selection of a
+ * project is stored in a file, so it is reused while the dependencies do not change and no new package is
+ * required.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+@Component(role = ClasspathReducer.class)
+public class ClasspathReducer extends AbstractLogEnabled
+{
+	private static final Pattern IMPORT_PATTERN = Pattern.compile("^\\s*(?:package|import)\\s+(?:static\\s+)?([\\w.]+)", Pattern.MULTILINE);
+	private static final String VERSIONED_CLASSES = "META-INF/versions/";
+
+	private final Map<File, ArchivePackages> archives = new HashMap<File, ArchivePackages>();
+
+	/**
+	 * Collect the packages declared or imported by the given source files. All the prefixes of an imported
+	 * name are included, as the import may refer to a nested type.
+	 *
+	 * @param sources source files
+	 * @param charset source files encoding
+	 * @return packages names
+	 * @throws IOException
+	 */
+	public static Set<String> getImportedPackages(Collection<File> sources, Charset charset) throws IOException
+	{
+		Set<String> packages = new HashSet<String>();
+		for (File source : sources)
+		{
+			Matcher matcher = IMPORT_PATTERN.matcher(new String(Files.readAllBytes(source.toPath()), charset));
+			while (matcher.find())
+			{
+				addPrefixes(matcher.group(1), packages);
+			}
+		}
+		return packages;
+	}
+
+	/**
+	 * Add the given name and all its prefixes to the packages set.
+	 *
+	 * @param qualifiedName a package or type name
+	 * @param packages packages names
+	 */
+	public static void addPrefixes(String qualifiedName, Set<String> packages)
+	{
+		String name = qualifiedName.endsWith(".") ? qualifiedName.substring(0, qualifiedName.length() - 1) : qualifiedName;
+		while (name.length() > 0 && packages.add(name))
+		{
+			int index = name.lastIndexOf('.');
+			name = (index > 0) ? name.substring(0, index) : "";
+		}
+	}
+
+	/**
+	 * Select the classpath entries reachable from the given packages.
+	 *
+	 * @param classpath complete classpath
+	 * @param requiredPackages packages referenced by the processed sources
+	 * @param complete if true, the required packages cover all project sources and replace the ones previously
+	 * recorded. Otherwise they are added to them
+	 * @param selectionFile file where the selection is stored between builds
+	 * @return the selected entries, in the classpath order
+	 * @throws IOException
+	 */
+	public List<File> reduce(Collection<File> classpath, Set<String> requiredPackages, boolean complete, File selectionFile) throws IOException
+	{
+		byte[] fingerprint = getFingerprint(classpath);
+		ClasspathSelection previous = ClasspathSelection.read(selectionFile);
+		if (previous != null && Arrays.equals(previous.getFingerprint(), fingerprint)
+			&& previous.getPackages().containsAll(requiredPackages) && (!complete || previous.getPackages().equals(requiredPackages)))
+		{
+			return previous.getEntries();
+		}
+
+		Set<String> packages = new HashSet<String>(requiredPackages);
+		if (previous != null && !complete)
+		{
+			packages.addAll(previous.getPackages());
+		}
+		List<File> entries = select(classpath, packages);
+		new ClasspathSelection(fingerprint, packages, entries).write(selectionFile);
+		if (getLogger().isDebugEnabled())
+		{
+			getLogger().debug("Selected " + entries.size() + " of " + classpath.size() + " classpath entries.");
+		}
+		return entries;
+	}
+
+	private List<File> select(Collection<File> classpath, Set<String> packages) throws IOException
+	{
+		Map<File, ArchivePackages> candidates = new HashMap<File, ArchivePackages>();
+		for (File entry : classpath)
+		{
+			if (entry.isFile())
+			{
+				candidates.put(entry, getArchivePackages(entry));
+			}
+		}
+
+		Set<String> required = new HashSet<String>(packages);
+		Set<File> selected = new HashSet<File>();
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (Map.Entry<File, ArchivePackages> candidate : candidates.entrySet())
+			{
+				ArchivePackages archive = candidate.getValue();
+				if (!selected.contains(candidate.getKey()) && archive.provides(required))
+				{
+					selected.add(candidate.getKey());
+					required.addAll(archive.references);
+					changed = true;
+				}
+			}
+		}
+
+		List<File> result = new ArrayList<File>();
+		for (File entry : classpath)
+		{
+			if (!candidates.containsKey(entry) || selected.contains(entry))
+			{
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	private synchronized ArchivePackages getArchivePackages(File file) throws IOException
+	{
+		ArchivePackages archive = archives.get(file);
+		if (archive == null || archive.size != file.length() || archive.lastModified != file.lastModified())
+		{
+			archive = readArchive(file);
+			archives.put(file, archive);
+		}
+		return archive;
+	}
+
+	private ArchivePackages readArchive(File file) throws IOException
+	{
+		ArchivePackages archive = new ArchivePackages(file.length(), file.lastModified());
+		ZipFile zipFile;
+		try
+		{
+			zipFile = new ZipFile(file);
+		}
+		catch (ZipException e)
+		{
+			// not an archive. Always keep it on the classpath
+			archive.unknown = true;
+			return archive;
+		}
+		try
+		{
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements())
+			{
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (!name.endsWith(".class") || name.endsWith("module-info.class"))
+				{
+					continue;
+				}
+				if (name.startsWith(VERSIONED_CLASSES))
+				{
+					int index = name.indexOf('/', VERSIONED_CLASSES.length());
+					name = name.substring(index + 1);
+				}
+				int index = name.lastIndexOf('/');
+				archive.packages.add((index > 0) ? name.substring(0, index).replace('/', '.') : "");
+				DataInputStream in = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(entry)));
+				try
+				{
+					ClassFileReferences.collectPackages(in, archive.references);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		}
+		finally
+		{
+			zipFile.close();
+		}
+		return archive;
+	}
+
+	private static byte[] getFingerprint(Collection<File> classpath) throws IOException
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			for (File entry : classpath)
+			{
+				digest.update(entry.getPath().getBytes("UTF-8"));
+				digest.update(Long.toString(entry.length()).getBytes("UTF-8"));
+				digest.update(Long.toString(entry.lastModified()).getBytes("UTF-8"));
+			}
+			return digest.digest();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("Error computing classpath fingerprint", e);
+		}
+	}
+
+	private static class ArchivePackages
+	{
+		private final long size;
+		private final long lastModified;
+		private final Set<String> packages = new HashSet<String>();
+		private final Set<String> references = new HashSet<String>();
+		private boolean unknown;
+
+		private ArchivePackages(long size, long lastModified)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		private boolean provides(Set<String> required)
+		{
+			if (unknown)
+			{
+				return true;
+			}
+			return !Collections.disjoint(packages, required);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.apache.maven.execution.MavenSession;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.logging.AbstractLogEnabled;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+
+/**
+ * Keeps the system java compiler and a pool of file managers alive across the modules of a build.
+ * A file manager keeps the indexes of the archives it already opened, so reusing it avoids reading
+ * the same dependency jars again for each module. Each file manager is used by a single thread at a
+ * time, so the cache is safe for parallel builds.
+ * <p>
+ * Idle file managers are closed when a new session starts (long lived JVMs, like mvnd) or when the
+ * plugin container is disposed. A file manager is also discarded if any archive it indexed was
+ * modified since it was opened (for instance, a SNAPSHOT dependency rebuilt by the reactor).
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+@Component(role = CompilerCache.class)
+public class CompilerCache extends AbstractLogEnabled implements Disposable
+{
+	private static final int MAX_IDLE_FILE_MANAGERS = Runtime.getRuntime().availableProcessors();
+
+	private JavaCompiler compiler;
+	private boolean compilerResolved;
+	private WeakReference<MavenSession> currentSession = new WeakReference<MavenSession>(null);
+	private final List<FileManagerLease> idleFileManagers = new ArrayList<FileManagerLease>();
+
+	/**
+	 * Retrieve the system java compiler.
+	 * @return the compiler or null if the JVM does not provide one.
+	 */
+	public synchronized JavaCompiler getCompiler()
+	{
+		if (!compilerResolved)
+		{
+			compiler = ToolProvider.getSystemJavaCompiler();
+			compilerResolved = true;
+		}
+		return compiler;
+	}
+
+	/**
+	 * Obtain a file manager for exclusive use of the caller, that must return it through
+	 * {@link #release(FileManagerLease)} when the compilation finishes.
+	 *
+	 * @param session current maven session
+	 * @param charset encoding of the source files
+	 * @return a file manager lease or null if the JVM does not provide a java compiler.
+	 */
+	public synchronized FileManagerLease acquire(MavenSession session, Charset charset)
+	{
+		if (currentSession.get() != session)
+		{
+			closeIdleFileManagers();
+			currentSession = new WeakReference<MavenSession>(session);
+		}
+		for (Iterator<FileManagerLease> it = idleFileManagers.iterator(); it.hasNext();)
+		{
+			FileManagerLease lease = it.next();
+			if (lease.charset.equals(charset))
+			{
+				it.remove();
+				if (lease.isUpToDate())
+				{
+					return lease;
+				}
+				getLogger().debug("Classpath archives modified. Discarding cached file manager.");
+				lease.close();
+			}
+		}
+		JavaCompiler javaCompiler = getCompiler();
+		if (javaCompiler == null)
+		{
+			return null;
+		}
+		return new FileManagerLease(javaCompiler.getStandardFileManager(null, null, charset), charset, session);
+	}
+
+	/**
+	 * Return a file manager to the pool.
+	 * @param lease
+	 */
+	public synchronized void release(FileManagerLease lease)
+	{
+		if (lease.session == currentSession.get() && idleFileManagers.size() < MAX_IDLE_FILE_MANAGERS)
+		{
+			idleFileManagers.add(lease);
+		}
+		else
+		{
+			lease.close();
+		}
+	}
+
+	@Override
+	public synchronized void dispose()
+	{
+		closeIdleFileManagers();
+		compiler = null;
+		compilerResolved = false;
+	}
+
+	private void closeIdleFileManagers()
+	{
+		for (FileManagerLease lease : idleFileManagers)
+		{
+			lease.close();
+		}
+		idleFileManagers.clear();
+	}
+
+	public static class FileManagerLease
+	{
+		private final StandardJavaFileManager fileManager;
+		private final Charset charset;
+		private final MavenSession session;
+		private final Map<File, long[]> archives = new HashMap<File, long[]>();
+
+		private FileManagerLease(StandardJavaFileManager fileManager, Charset charset, MavenSession session)
+		{
+			this.fileManager = fileManager;
+			this.charset = charset;
+			this.session = session;
+		}
+
+		public StandardJavaFileManager getFileManager()
+		{
+			return fileManager;
+		}
+
+		/**
+		 * Configure the file manager locations for a new compilation. Any location not informed here is
+		 * reset, so nothing set by a previous compilation leaks to the new one.
+		 *
+		 * @param classpath compilation classpath
+		 * @param sourcePath folders where referenced sources are searched. If null, they are searched on the classpath
+		 * @param sourceOutput folder for generated sources
+		 * @param classOutput folder for generated classes and resources
+		 * @throws IOException
+		 */
+		public void setLocations(Collection<File> classpath, Collection<File> sourcePath, File sourceOutput, File classOutput) throws IOException
+		{
+			fileManager.setLocation(StandardLocation.SOURCE_PATH, sourcePath);
+			fileManager.setLocation(StandardLocation.CLASS_PATH, classpath);
+			fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singleton(sourceOutput));
+			fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singleton(classOutput));
+			for (File entry : classpath)
+			{
+				if (entry.isFile() && !archives.containsKey(entry))
+				{
+					archives.put(entry, new long[] { entry.length(), entry.lastModified() });
+				}
+			}
+		}
+
+		private boolean isUpToDate()
+		{
+			for (Map.Entry<File, long[]> archive : archives.entrySet())
+			{
+				File file = archive.getKey();
+				long[] fingerprint = archive.getValue();
+				if (file.length() != fingerprint[0] || file.lastModified() != fingerprint[1])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void close()
+		{
+			try
+			{
+				fileManager.close();
+			}
+			catch (IOException e)
+			{
+				// IGNORE
+			}
+		}
+	}
+}
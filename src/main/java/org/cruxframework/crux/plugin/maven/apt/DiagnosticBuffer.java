@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+
+/**
+ * Hold the diagnostics of a compilation that may be discarded, reporting them only if the compilation
+ * result is accepted.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class DiagnosticBuffer implements DiagnosticListener<JavaFileObject>
+{
+	private final List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+
+	@Override
+	public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic)
+	{
+		diagnostics.add(diagnostic);
+	}
+
+	/**
+	 * Send all buffered diagnostics to the given listener.
+	 * @param listener
+	 */
+	public synchronized void replay(DiagnosticListener<JavaFileObject> listener)
+	{
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics)
+		{
+			listener.report(diagnostic);
+		}
+		diagnostics.clear();
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Collects the diagnostics of the annotation processing. Errors are logged as soon as they are reported.
+ * Other diagnostics are deduplicated by kind, code and position (and by message, only for the diagnostics that
+ * share those), and only the first ones are logged. All of them are formatted and written to a detail file by a
+ * background thread, so the compiler does not wait for the messages of the diagnostics that are not logged.
+ * When the collector is closed, a summary with the number of diagnostics of each kind, and of messages of each
+ * processor, is logged.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class DiagnosticsCollector implements DiagnosticListener<JavaFileObject>
+{
+	private static final Pending END = new Pending(null, null, null);
+
+	private final Log log;
+	private final File detailFile;
+	private final int logLimit;
+	private final Map<String, Diagnostic<? extends JavaFileObject>> reported = new HashMap<String, Diagnostic<? extends JavaFileObject>>();
+	private final Map<String, Set<String>> reportedMessages = new HashMap<String, Set<String>>();
+	private final Map<String, Integer> kindCounts = new TreeMap<String, Integer>();
+	private final Map<String, Map<String, Integer>> processorCounts = new TreeMap<String, Map<String, Integer>>();
+	private final BlockingQueue<Pending> pendingLines = new LinkedBlockingQueue<Pending>();
+	private final Thread writerThread;
+	private int logged;
+	private int duplicates;
+	private volatile IOException writeError;
+
+	/**
+	 * @param log where errors, the first diagnostics and the summary are logged
+	 * @param detailFile file that receives all diagnostics
+	 * @param logLimit maximum number of diagnostics other than errors logged
+	 */
+	public DiagnosticsCollector(Log log, File detailFile, int logLimit)
+	{
+		this.log = log;
+		this.detailFile = detailFile;
+		this.logLimit = logLimit;
+		this.writerThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeDetails();
+			}
+		}, "crux-apt-diagnostics");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void report(Diagnostic<? extends JavaFileObject> diagnostic)
+	{
+		Kind kind = diagnostic.getKind();
+		String source = (diagnostic.getSource() == null) ? null : diagnostic.getSource().getName();
+		String key = new StringBuilder().append(kind).append('|').append(diagnostic.getCode()).append('|').append(source)
+			.append('|').append(diagnostic.getPosition()).toString();
+
+		boolean logDiagnostic;
+		synchronized (this)
+		{
+			if (kind != Kind.ERROR && isDuplicate(key, diagnostic))
+			{
+				duplicates++;
+				return;
+			}
+			increment(kindCounts, kind.name());
+			logDiagnostic = (kind == Kind.ERROR) || (logged < logLimit);
+			if (kind != Kind.ERROR && logDiagnostic)
+			{
+				logged++;
+			}
+		}
+
+		if (logDiagnostic)
+		{
+			String line = format(kind, source, diagnostic.getLineNumber(), diagnostic.getColumnNumber(), diagnostic.getMessage(null));
+			pendingLines.add(new Pending(null, null, line));
+			log(kind, line);
+		}
+		else
+		{
+			pendingLines.add(new Pending(diagnostic, source, null));
+		}
+	}
+
+	/**
+	 * Check if an equivalent diagnostic was already reported. Messages are only compared when many diagnostics
+	 * have the same key, as processors report different messages with the same code on the same element.
+	 */
+	private boolean isDuplicate(String key, Diagnostic<? extends JavaFileObject> diagnostic)
+	{
+		Diagnostic<? extends JavaFileObject> first = reported.get(key);
+		if (first == null)
+		{
+			reported.put(key, diagnostic);
+			return false;
+		}
+		Set<String> messages = reportedMessages.get(key);
+		if (messages == null)
+		{
+			messages = new HashSet<String>();
+			messages.add(first.getMessage(null));
+			reportedMessages.put(key, messages);
+		}
+		return !messages.add(diagnostic.getMessage(null));
+	}
+
+	/**
+	 * Count a message printed by an annotation processor.
+	 *
+	 * @param processor processor class name
+	 * @param kind message kind
+	 */
+	public synchronized void processorMessage(String processor, Kind kind)
+	{
+		Map<String, Integer> counts = processorCounts.get(processor);
+		if (counts == null)
+		{
+			counts = new TreeMap<String, Integer>();
+			processorCounts.put(processor, counts);
+		}
+		increment(counts, kind.name());
+	}
+
+	/**
+	 * Check if any error was reported.
+	 */
+	public synchronized boolean hasErrors()
+	{
+		return kindCounts.containsKey(Kind.ERROR.name());
+	}
+
+	/**
+	 * Wait for all diagnostics to be written to the detail file and log the summary.
+	 *
+	 * @throws IOException if the detail file could not be written
+	 */
+	public void close() throws IOException
+	{
+		pendingLines.add(END);
+		try
+		{
+			writerThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this)
+		{
+			if (!kindCounts.isEmpty())
+			{
+				log.info("APT diagnostics: " + formatCounts(kindCounts) + ", " + duplicates + " duplicated. Details in " 
+					+ detailFile.getPath());
+				for (Map.Entry<String, Map<String, Integer>> counts : processorCounts.entrySet())
+				{
+					log.info("  " + counts.getKey() + ": " + formatCounts(counts.getValue()));
+				}
+			}
+		}
+		if (writeError != null)
+		{
+			throw writeError;
+		}
+	}
+
+	private void writeDetails()
+	{
+		Writer out = null;
+		try
+		{
+			detailFile.getParentFile().mkdirs();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(detailFile), "UTF-8"));
+			Pending pending;
+			while ((pending = pendingLines.take()) != END)
+			{
+				out.write(pending.format());
+				out.write('\n');
+			}
+		}
+		catch (IOException e)
+		{
+			writeError = e;
+			// keep consuming, so close() does not wait forever
+			drain();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			if (out != null)
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+					writeError = e;
+				}
+			}
+		}
+	}
+
+	private void drain()
+	{
+		try
+		{
+			while (pendingLines.take() != END)
+			{
+				// discard
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void log(Kind kind, String line)
+	{
+		if (Kind.ERROR == kind)
+		{
+			log.error(line);
+		}
+		else if (Kind.MANDATORY_WARNING == kind || Kind.WARNING == kind)
+		{
+			log.warn(line);
+		}
+		else
+		{
+			log.info(line);
+		}
+	}
+
+	private static String format(Kind kind, String source, long line, long column, String message)
+	{
+		StringBuilder result = new StringBuilder("APT: ");
+		if (source != null)
+		{
+			result.append(source);
+			if (line != Diagnostic.NOPOS)
+			{
+				result.append(':').append(line);
+				if (column != Diagnostic.NOPOS)
+				{
+					result.append(':').append(column);
+				}
+			}
+			result.append(": ");
+		}
+		return result.append(kind.name().toLowerCase()).append(": ").append(message).toString();
+	}
+
+	/**
+	 * A diagnostic waiting to be written to the detail file, already formatted if it was logged.
+	 */
+	private static class Pending
+	{
+		private final Diagnostic<? extends JavaFileObject> diagnostic;
+		private final String source;
+		private final String line;
+
+		private Pending(Diagnostic<? extends JavaFileObject> diagnostic, String source, String line)
+		{
+			this.diagnostic = diagnostic;
+			this.source = source;
+			this.line = line;
+		}
+
+		private String format()
+		{
+			if (line != null)
+			{
+				return line;
+			}
+			return DiagnosticsCollector.format(diagnostic.getKind(), source, diagnostic.getLineNumber(), 
+				diagnostic.getColumnNumber(), diagnostic.getMessage(null));
+		}
+	}
+
+	private static String formatCounts(Map<String, Integer> counts)
+	{
+		StringBuilder result = new StringBuilder();
+		for (Map.Entry<String, Integer> count : counts.entrySet())
+		{
+			if (result.length() > 0)
+			{
+				result.append(", ");
+			}
+			result.append(count.getValue()).append(' ').append(count.getKey().toLowerCase());
+		}
+		return result.toString();
+	}
+
+	private static void increment(Map<String, Integer> counts, String key)
+	{
+		Integer count = counts.get(key);
+		counts.put(key, (count == null) ? 1 : count + 1);
+	}
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.FileObject;
+
+import org.cruxframework.crux.plugin.maven.incremental.DependencyGraph;
+
+/**
+ * Collects, during an annotation processing run, which source files were handled by each processor,
+ * the project sources and classpath packages they depend on and the files generated from them.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ProcessingTracker
+{
+	private static final String NOT_A_SOURCE = "";
+
+	private final List<File> sourceRoots;
+	private final Map<String, String> sourcesByType = new HashMap<String, String>();
+	private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> packages = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> outputs = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> aggregatedOutputs = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> processorSources = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> processorUnattributedOutputs = new HashMap<String, Set<String>>();
+
+	/**
+	 * @param sourceRoots folders containing the project sources
+	 * @throws IOException
+	 */
+	public ProcessingTracker(Collection<File> sourceRoots) throws IOException
+	{
+		this.sourceRoots = new ArrayList<File>(sourceRoots.size());
+		for (File sourceRoot : sourceRoots)
+		{
+			this.sourceRoots.add(sourceRoot.getCanonicalFile());
+		}
+	}
+
+	/**
+	 * Retrieve all sources handled by any processor during the run
+	 * @return source paths
+	 */
+	public synchronized Set<String> getProcessedSources()
+	{
+		return new HashSet<String>(dependencies.keySet());
+	}
+
+	/**
+	 * Check if any of the reprocessed sources contributed to aggregated outputs before and does not
+	 * contribute anymore. Processors running in incremental mode only add entries to aggregated outputs,
+	 * so those files must be regenerated from scratch.
+	 *
+	 * @param previousGraph graph recorded by the previous run
+	 * @param reprocessedSources sources handed to the processors
+	 * @return true if any aggregated output contains stale entries
+	 */
+	public synchronized boolean hasDroppedAggregatedOutputs(DependencyGraph previousGraph, Collection<String> reprocessedSources)
+	{
+		Map<String, Set<String>> aggregated = getAggregatedOutputs();
+		for (String source : reprocessedSources)
+		{
+			DependencyGraph.Node previous = previousGraph.get(source);
+			if (previous != null)
+			{
+				Set<String> current = aggregated.get(source);
+				for (String output : previous.getAggregatedOutputs())
+				{
+					if (current == null || !current.contains(output))
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replace the graph nodes of the reprocessed sources by the information collected in this run.
+	 *
+	 * @param graph graph to update
+	 * @param reprocessedSources sources handed to the processors
+	 */
+	public synchronized void updateGraph(DependencyGraph graph, Collection<String> reprocessedSources)
+	{
+		for (String source : reprocessedSources)
+		{
+			graph.remove(source);
+		}
+		Map<String, Set<String>> aggregated = getAggregatedOutputs();
+		Map<String, Set<String>> sourceProcessors = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : processorSources.entrySet())
+		{
+			for (String source : entry.getValue())
+			{
+				getOrCreate(sourceProcessors, source).add(entry.getKey());
+			}
+		}
+		Set<String> sources = new HashSet<String>(dependencies.keySet());
+		sources.addAll(outputs.keySet());
+		sources.addAll(aggregated.keySet());
+		for (String source : sources)
+		{
+			graph.put(source, getValues(dependencies, source), getValues(outputs, source), getValues(aggregated, source), 
+					getValues(packages, source), getValues(sourceProcessors, source));
+		}
+	}
+
+	/**
+	 * Add the information collected by another tracker to this one.
+	 *
+	 * @param tracker tracker to merge
+	 * @param relocations output folders used by the other tracker mapped to the final output folders
+	 */
+	public synchronized void merge(ProcessingTracker tracker, Map<File, File> relocations)
+	{
+		Map<String, String> prefixes = new HashMap<String, String>();
+		for (Map.Entry<File, File> relocation : relocations.entrySet())
+		{
+			prefixes.put(relocation.getKey().getAbsolutePath() + File.separator, relocation.getValue().getAbsolutePath() + File.separator);
+		}
+		synchronized (tracker)
+		{
+			for (Map.Entry<String, Set<String>> entry : tracker.dependencies.entrySet())
+			{
+				getOrCreate(dependencies, entry.getKey()).addAll(entry.getValue());
+			}
+			for (Map.Entry<String, Set<String>> entry : tracker.packages.entrySet())
+			{
+				getOrCreate(packages, entry.getKey()).addAll(entry.getValue());
+			}
+			mergeOutputs(outputs, tracker.outputs, prefixes);
+			mergeOutputs(aggregatedOutputs, tracker.aggregatedOutputs, prefixes);
+			mergeOutputs(processorUnattributedOutputs, tracker.processorUnattributedOutputs, prefixes);
+			for (Map.Entry<String, Set<String>> entry : tracker.processorSources.entrySet())
+			{
+				getOrCreate(processorSources, entry.getKey()).addAll(entry.getValue());
+			}
+		}
+	}
+
+	synchronized void typeProcessed(String processor, TypeElement type)
+	{
+		String source = getSource(type);
+		if (source != null)
+		{
+			getOrCreate(processorSources, processor).add(source);
+			if (!dependencies.containsKey(source))
+			{
+				Set<String> typeDependencies = new HashSet<String>();
+				Set<String> typePackages = new HashSet<String>();
+				collectDependencies(type, typeDependencies, typePackages, new HashSet<String>());
+				typeDependencies.remove(source);
+				dependencies.put(source, typeDependencies);
+				packages.put(source, typePackages);
+			}
+		}
+	}
+
+	synchronized void outputCreated(String processor, FileObject output, Element... originatingElements)
+	{
+		String outputPath = getOutputPath(output);
+		if (outputPath == null)
+		{
+			return;
+		}
+		Set<String> originatingSources = new HashSet<String>();
+		if (originatingElements != null)
+		{
+			for (Element element : originatingElements)
+			{
+				String source = getSource(element);
+				if (source != null)
+				{
+					originatingSources.add(source);
+				}
+			}
+		}
+		if (originatingSources.isEmpty())
+		{
+			// Attributed to all sources seen by the processor when the run finishes
+			getOrCreate(processorUnattributedOutputs, processor).add(outputPath);
+		}
+		else if (originatingSources.size() == 1)
+		{
+			getOrCreate(outputs, originatingSources.iterator().next()).add(outputPath);
+		}
+		else
+		{
+			for (String source : originatingSources)
+			{
+				getOrCreate(aggregatedOutputs, source).add(outputPath);
+			}
+		}
+	}
+
+	/**
+	 * Record a class compiled from a project source, or from a source generated exclusively for a project source.
+	 */
+	synchronized void classCompiled(File source, String output)
+	{
+		String sourcePath = getProjectSource(source);
+		if (sourcePath == null)
+		{
+			String generatedSource = source.getAbsolutePath();
+			for (Map.Entry<String, Set<String>> entry : outputs.entrySet())
+			{
+				if (entry.getValue().contains(generatedSource))
+				{
+					sourcePath = entry.getKey();
+					break;
+				}
+			}
+		}
+		if (sourcePath != null)
+		{
+			getOrCreate(outputs, sourcePath).add(output);
+		}
+	}
+
+	/**
+	 * Check if the given file is inside any project source folder.
+	 */
+	boolean isProjectSource(File file)
+	{
+		return getProjectSource(file) != null;
+	}
+
+	private String getProjectSource(File file)
+	{
+		try
+		{
+			String path = file.getCanonicalPath();
+			for (File sourceRoot : sourceRoots)
+			{
+				if (path.startsWith(sourceRoot.getPath() + File.separator))
+				{
+					return path;
+				}
+			}
+			return null;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private Map<String, Set<String>> getAggregatedOutputs()
+	{
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : aggregatedOutputs.entrySet())
+		{
+			result.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		}
+		for (Map.Entry<String, Set<String>> entry : processorUnattributedOutputs.entrySet())
+		{
+			Set<String> sources = processorSources.get(entry.getKey());
+			if (sources != null)
+			{
+				for (String source : sources)
+				{
+					getOrCreate(result, source).addAll(entry.getValue());
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void mergeOutputs(Map<String, Set<String>> target, Map<String, Set<String>> source, Map<String, String> prefixes)
+	{
+		for (Map.Entry<String, Set<String>> entry : source.entrySet())
+		{
+			Set<String> values = getOrCreate(target, entry.getKey());
+			for (String output : entry.getValue())
+			{
+				values.add(relocate(output, prefixes));
+			}
+		}
+	}
+
+	private static String relocate(String path, Map<String, String> prefixes)
+	{
+		for (Map.Entry<String, String> prefix : prefixes.entrySet())
+		{
+			if (path.startsWith(prefix.getKey()))
+			{
+				return prefix.getValue() + path.substring(prefix.getKey().length());
+			}
+		}
+		return path;
+	}
+
+	private void collectDependencies(TypeElement type, Set<String> result, Set<String> classpathPackages, Set<String> visited)
+	{
+		if (!visited.add(type.getQualifiedName().toString()))
+		{
+			return;
+		}
+		TypeDependencies typeDependencies = new TypeDependencies();
+		typeDependencies.scan(type);
+		for (TypeElement dependency : typeDependencies.getReferencedTypes())
+		{
+			String source = getSource(dependency);
+			if (source != null)
+			{
+				result.add(source);
+				collectDependencies(getTopLevelType(dependency), result, classpathPackages, visited);
+			}
+			else
+			{
+				String packageName = getPackageName(dependency);
+				if (packageName != null)
+				{
+					classpathPackages.add(packageName);
+				}
+			}
+		}
+	}
+
+	private static String getPackageName(Element element)
+	{
+		while (element != null && element.getKind() != ElementKind.PACKAGE)
+		{
+			element = element.getEnclosingElement();
+		}
+		return (element == null) ? null : ((PackageElement) element).getQualifiedName().toString();
+	}
+
+	private String getOutputPath(FileObject output)
+	{
+		URI uri = output.toUri();
+		if (uri != null && "file".equals(uri.getScheme()))
+		{
+			return new File(uri).getAbsolutePath();
+		}
+		return null;
+	}
+
+	private String getSource(Element element)
+	{
+		TypeElement type = getTopLevelType(element);
+		if (type == null)
+		{
+			return null;
+		}
+		String typeName = type.getQualifiedName().toString();
+		String source = sourcesByType.get(typeName);
+		if (source == null)
+		{
+			source = NOT_A_SOURCE;
+			String relativePath = typeName.replace('.', File.separatorChar) + ".java";
+			for (File sourceRoot : sourceRoots)
+			{
+				File sourceFile = new File(sourceRoot, relativePath);
+				if (sourceFile.isFile())
+				{
+					source = sourceFile.getPath();
+					break;
+				}
+			}
+			sourcesByType.put(typeName, source);
+		}
+		return (source == NOT_A_SOURCE) ? null : source;
+	}
+
+	private static TypeElement getTopLevelType(Element element)
+	{
+		TypeElement type = null;
+		while (element != null && element.getKind() != ElementKind.PACKAGE)
+		{
+			if (element instanceof TypeElement)
+			{
+				type = (TypeElement) element;
+			}
+			element = element.getEnclosingElement();
+		}
+		return type;
+	}
+
+	private static Set<String> getValues(Map<String, Set<String>> map, String key)
+	{
+		Set<String> values = map.get(key);
+		return (values == null) ? Collections.<String>emptySet() : values;
+	}
+
+	private static Set<String> getOrCreate(Map<String, Set<String>> map, String key)
+	{
+		Set<String> values = map.get(key);
+		if (values == null)
+		{
+			values = new HashSet<String>();
+			map.put(key, values);
+		}
+		return values;
+	}
+}
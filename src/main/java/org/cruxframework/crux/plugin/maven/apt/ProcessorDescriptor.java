@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Processor;
+
+/**
+ * Describes an annotation processor run by the apt goal and how it behaves on incremental runs. Processors
+ * are declared on <code>META-INF/crux/incremental.annotation.processors</code> resources, one per line, as
+ * <code>&lt;processor class&gt;,&lt;kind&gt;</code>. Lines starting with <code>#</code> are ignored.
+ * <p>
+ * Processors from any archive on the plugin classpath are found, so in-house processors can be added as
+ * plugin dependencies.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ProcessorDescriptor
+{
+	public static final String RESOURCE = "META-INF/crux/incremental.annotation.processors";
+
+	public static enum Kind
+	{
+		/**
+		 * Runs only over the changed types. Each output must be generated from a single type, or the processor
+		 * must merge aggregated outputs with their previous content (like the Crux processors do when the
+		 * incremental option is informed).
+		 */
+		ISOLATING,
+
+		/**
+		 * Generates outputs from many types. Runs over all its previous input types, but only when any of
+		 * them changed or when a changed type mentions one of its annotations.
+		 */
+		AGGREGATING
+	}
+
+	private final String className;
+	private final Kind kind;
+	private final ClassLoader classLoader;
+
+	public ProcessorDescriptor(String className, Kind kind, ClassLoader classLoader)
+	{
+		this.className = className;
+		this.kind = kind;
+		this.classLoader = classLoader;
+	}
+
+	public String getClassName()
+	{
+		return className;
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 * Create a new processor instance. Processors can not be shared by different compilations.
+	 *
+	 * @return the processor
+	 * @throws IOException if the processor can not be created
+	 */
+	public Processor newInstance() throws IOException
+	{
+		try
+		{
+			return (Processor) Class.forName(className, true, classLoader).getDeclaredConstructor().newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Error creating annotation processor " + className, e);
+		}
+	}
+
+	/**
+	 * Find all processors declared on the given class loader.
+	 *
+	 * @param classLoader loader used to find the declarations and the processors classes
+	 * @return processors descriptors. If a processor is declared more than once, the first declaration is used
+	 * @throws IOException
+	 */
+	public static List<ProcessorDescriptor> load(ClassLoader classLoader) throws IOException
+	{
+		Map<String, ProcessorDescriptor> descriptors = new LinkedHashMap<String, ProcessorDescriptor>();
+		Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+		while (resources.hasMoreElements())
+		{
+			URL resource = resources.nextElement();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openStream(), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("#"))
+					{
+						continue;
+					}
+					int index = line.indexOf(',');
+					if (index < 0)
+					{
+						throw new IOException("Invalid processor declaration on " + resource + ": " + line);
+					}
+					String className = line.substring(0, index).trim();
+					Kind kind;
+					try
+					{
+						kind = Kind.valueOf(line.substring(index + 1).trim());
+					}
+					catch (IllegalArgumentException e)
+					{
+						throw new IOException("Invalid processor kind on " + resource + ": " + line, e);
+					}
+					if (!descriptors.containsKey(className))
+					{
+						descriptors.put(className, new ProcessorDescriptor(className, kind, classLoader));
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		return new ArrayList<ProcessorDescriptor>(descriptors.values());
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Move the files generated by each processing shard to the final output folder. A file generated by
+ * a single shard is just moved. A file generated by many shards is an aggregated output: if all shards
+ * generated the same content, any copy is used. Otherwise, only the registries are merged:
+ * <ul>
+ * <li><code>META-INF/services</code> files list one entry per line. The lines of all copies are kept, in the
+ * order they were first found.</li>
+ * <li>Crux registries (like the libraries and REST services registries, under <code>META-INF/crux</code>) and
+ * properties files map keys to values. The keys of all copies are kept, sorted. A key mapped to different
+ * values by two shards is a conflict. Registries without any value are merged line by line.</li>
+ * </ul>
+ * Any other file with different contents (sources, classes, XML or JSON files) can not be safely merged.
+ * Conflicts are reported as errors. Existing files that already have the final content are not touched.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ShardOutputMerger
+{
+	private static final String SERVICES_FOLDER = "META-INF/services/";
+	private static final String CRUX_FOLDER = "META-INF/crux/";
+
+	private final Charset charset;
+
+	public ShardOutputMerger(Charset charset)
+	{
+		this.charset = charset;
+	}
+
+	/**
+	 * Merge the content of the shard folders into the target folder.
+	 *
+	 * @param shardDirs output folders of each shard
+	 * @param targetDir final output folder
+	 * @throws IOException
+	 */
+	public void merge(List<File> shardDirs, File targetDir) throws IOException
+	{
+		Map<String, List<File>> outputs = new LinkedHashMap<String, List<File>>();
+		for (File shardDir : shardDirs)
+		{
+			collect(shardDir, "", outputs);
+		}
+		for (Map.Entry<String, List<File>> output : outputs.entrySet())
+		{
+			File target = new File(targetDir, output.getKey());
+			target.getParentFile().mkdirs();
+			List<File> copies = output.getValue();
+			if (copies.size() == 1 || isSameContent(copies))
+			{
+				if (WriteAvoidingFileManager.hasContent(target, Files.readAllBytes(copies.get(0).toPath())))
+				{
+					continue;
+				}
+				Files.move(copies.get(0).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else if (isServicesRegistry(output.getKey()))
+			{
+				mergeLines(copies, target);
+			}
+			else if (isKeyedRegistry(output.getKey()))
+			{
+				mergeKeys(output.getKey(), copies, target);
+			}
+			else
+			{
+				throw conflict(output.getKey(), "was generated with different contents");
+			}
+		}
+	}
+
+	/**
+	 * Check if the file is a services registry, of one entry per line, where repeated lines have no meaning.
+	 */
+	private static boolean isServicesRegistry(String path)
+	{
+		return path.startsWith(SERVICES_FOLDER) && path.indexOf('/', SERVICES_FOLDER.length()) < 0;
+	}
+
+	/**
+	 * Check if the file is a registry of keys mapped to values.
+	 */
+	private static boolean isKeyedRegistry(String path)
+	{
+		return path.startsWith(CRUX_FOLDER) || path.endsWith(".properties");
+	}
+
+	private static IOException conflict(String path, String reason)
+	{
+		return new IOException("File " + path + " " + reason + " by concurrent annotation processing shards. " 
+			+ "Disable the parallel processing (apt.threads=1) for this project.");
+	}
+
+	private void collect(File dir, String relativePath, Map<String, List<File>> outputs)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			String path = relativePath + file.getName();
+			if (file.isDirectory())
+			{
+				collect(file, path + "/", outputs);
+			}
+			else
+			{
+				List<File> copies = outputs.get(path);
+				if (copies == null)
+				{
+					copies = new ArrayList<File>();
+					outputs.put(path, copies);
+				}
+				copies.add(file);
+			}
+		}
+	}
+
+	private boolean isSameContent(List<File> copies) throws IOException
+	{
+		byte[] first = Files.readAllBytes(copies.get(0).toPath());
+		for (int i = 1; i < copies.size(); i++)
+		{
+			if (!Arrays.equals(first, Files.readAllBytes(copies.get(i).toPath())))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merge the keys of all copies. Files with no key mapped to a value (just a list of names) are merged line
+	 * by line, keeping their format.
+	 */
+	private void mergeKeys(String path, List<File> copies, File target) throws IOException
+	{
+		List<Properties> contents = new ArrayList<Properties>();
+		boolean hasValues = false;
+		for (File copy : copies)
+		{
+			Properties properties = new Properties();
+			// the processors write through the file manager, in the sources encoding
+			Reader in = new InputStreamReader(new FileInputStream(copy), charset);
+			try
+			{
+				properties.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+			for (String key : properties.stringPropertyNames())
+			{
+				hasValues |= properties.getProperty(key).length() > 0;
+			}
+			contents.add(properties);
+		}
+		if (!hasValues)
+		{
+			mergeLines(copies, target);
+			return;
+		}
+
+		Map<String, String> entries = new TreeMap<String, String>();
+		for (Properties properties : contents)
+		{
+			for (String key : properties.stringPropertyNames())
+			{
+				String value = properties.getProperty(key);
+				String previous = entries.put(key, value);
+				if (previous != null && !previous.equals(value))
+				{
+					throw conflict(path, "maps the key " + key + " to different values (" + previous + " and " + value + ")");
+				}
+			}
+		}
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, String> entry : entries.entrySet())
+		{
+			content.append(escape(entry.getKey(), true)).append('=').append(escape(entry.getValue(), false))
+				.append(System.getProperty("line.separator"));
+		}
+		byte[] bytes = content.toString().getBytes(charset);
+		if (!WriteAvoidingFileManager.hasContent(target, bytes))
+		{
+			Files.write(target.toPath(), bytes);
+		}
+	}
+
+	/**
+	 * Escape a key or value like <code>Properties.store</code> does, but keeping the characters that are not ASCII,
+	 * as the file is written with the sources encoding.
+	 */
+	private static String escape(String text, boolean key)
+	{
+		StringBuilder result = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch (c)
+			{
+				case '\\':
+					result.append("\\\\");
+					break;
+				case '\t':
+					result.append("\\t");
+					break;
+				case '\n':
+					result.append("\\n");
+					break;
+				case '\r':
+					result.append("\\r");
+					break;
+				case '\f':
+					result.append("\\f");
+					break;
+				case '=':
+				case ':':
+				case '#':
+				case '!':
+					result.append('\\').append(c);
+					break;
+				case ' ':
+					if (key || i == 0)
+					{
+						result.append('\\');
+					}
+					result.append(c);
+					break;
+				default:
+					if (c < 0x20 || c == 0x7f)
+					{
+						result.append(String.format("\\u%04X", (int) c));
+					}
+					else
+					{
+						result.append(c);
+					}
+			}
+		}
+		return result.toString();
+	}
+
+	private void mergeLines(List<File> copies, File target) throws IOException
+	{
+		Set<String> lines = new LinkedHashSet<String>();
+		for (File copy : copies)
+		{
+			lines.addAll(Files.readAllLines(copy.toPath(), charset));
+		}
+		StringBuilder content = new StringBuilder();
+		for (String line : lines)
+		{
+			content.append(line).append(System.getProperty("line.separator"));
+		}
+		byte[] bytes = content.toString().getBytes(charset);
+		if (!WriteAvoidingFileManager.hasContent(target, bytes))
+		{
+			Files.write(target.toPath(), bytes);
+		}
+	}
+}
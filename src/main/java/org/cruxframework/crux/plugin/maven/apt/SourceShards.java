@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Split a set of source files in shards that can be processed concurrently. Files of the same package
+ * are always kept in the same shard and shards are balanced by the number of files.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class SourceShards
+{
+	private SourceShards()
+	{
+	}
+
+	/**
+	 * Split the given files in at most <code>count</code> shards.
+	 *
+	 * @param files source files
+	 * @param count maximum number of shards
+	 * @return the non empty shards
+	 */
+	public static List<Set<File>> byPackage(Collection<File> files, int count)
+	{
+		Map<File, List<File>> packages = new HashMap<File, List<File>>();
+		for (File file : files)
+		{
+			File packageDir = file.getAbsoluteFile().getParentFile();
+			List<File> packageFiles = packages.get(packageDir);
+			if (packageFiles == null)
+			{
+				packageFiles = new ArrayList<File>();
+				packages.put(packageDir, packageFiles);
+			}
+			packageFiles.add(file);
+		}
+
+		List<List<File>> groups = new ArrayList<List<File>>(packages.values());
+		Collections.sort(groups, new Comparator<List<File>>()
+		{
+			@Override
+			public int compare(List<File> o1, List<File> o2)
+			{
+				return o2.size() - o1.size();
+			}
+		});
+
+		int shardCount = Math.max(1, Math.min(count, groups.size()));
+		List<Set<File>> shards = new ArrayList<Set<File>>(shardCount);
+		for (int i = 0; i < shardCount; i++)
+		{
+			shards.add(new HashSet<File>());
+		}
+		// Largest packages first, always to the smallest shard
+		for (List<File> group : groups)
+		{
+			Set<File> smallest = shards.get(0);
+			for (Set<File> shard : shards)
+			{
+				if (shard.size() < smallest.size())
+				{
+					smallest = shard;
+				}
+			}
+			smallest.addAll(group);
+		}
+
+		List<Set<File>> result = new ArrayList<Set<File>>(shardCount);
+		for (Set<File> shard : shards)
+		{
+			if (!shard.isEmpty())
+			{
+				result.add(shard);
+			}
+		}
+		return result;
+	}
+}
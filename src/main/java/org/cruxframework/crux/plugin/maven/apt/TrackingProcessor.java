@@ -0,0 +1,284 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+
+/**
+ * Decorates an annotation processor to report to a {@link ProcessingTracker} the types it handles and
+ * the files it generates, to {@link AptMetrics} the time and memory spent on each round, and to the
+ * {@link DiagnosticsCollector} the messages it prints.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class TrackingProcessor implements Processor
+{
+	private final Processor processor;
+	private final ProcessingTracker tracker;
+	private final AptMetrics metrics;
+	private final DiagnosticsCollector diagnostics;
+	private final String processorName;
+	private boolean allTypes;
+
+	public TrackingProcessor(Processor processor, ProcessingTracker tracker, AptMetrics metrics, DiagnosticsCollector diagnostics)
+	{
+		this.processor = processor;
+		this.tracker = tracker;
+		this.metrics = metrics;
+		this.diagnostics = diagnostics;
+		this.processorName = processor.getClass().getName();
+	}
+
+	@Override
+	public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText)
+	{
+		return processor.getCompletions(element, annotation, member, userText);
+	}
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes()
+	{
+		return processor.getSupportedAnnotationTypes();
+	}
+
+	@Override
+	public Set<String> getSupportedOptions()
+	{
+		return processor.getSupportedOptions();
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return processor.getSupportedSourceVersion();
+	}
+
+	@Override
+	public void init(ProcessingEnvironment processingEnv)
+	{
+		allTypes = getSupportedAnnotationTypes().contains("*");
+		processor.init(new TrackingProcessingEnvironment(processingEnv));
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+	{
+		metrics.roundStarted();
+		AptMetrics.Measure tracking = metrics.start("tracking");
+		if (allTypes)
+		{
+			for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+			{
+				tracker.typeProcessed(processorName, type);
+			}
+		}
+		else
+		{
+			for (TypeElement annotation : annotations)
+			{
+				for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+				{
+					TypeElement type = getEnclosingType(element);
+					if (type != null)
+					{
+						tracker.typeProcessed(processorName, type);
+					}
+				}
+			}
+		}
+		tracking.stop();
+
+		long start = System.nanoTime();
+		long allocatedBytes = AptMetrics.getAllocatedBytes();
+		try
+		{
+			return processor.process(annotations, roundEnv);
+		}
+		finally
+		{
+			metrics.processorRound(processorName, System.nanoTime() - start, AptMetrics.getAllocatedBytesSince(allocatedBytes), 
+									roundEnv.getRootElements().size());
+		}
+	}
+
+	private static TypeElement getEnclosingType(Element element)
+	{
+		while (element != null && !(element instanceof TypeElement))
+		{
+			element = element.getEnclosingElement();
+		}
+		return (TypeElement) element;
+	}
+
+	private class TrackingProcessingEnvironment implements ProcessingEnvironment
+	{
+		private final ProcessingEnvironment processingEnv;
+		private final Filer filer;
+		private final Messager messager;
+
+		private TrackingProcessingEnvironment(ProcessingEnvironment processingEnv)
+		{
+			this.processingEnv = processingEnv;
+			this.filer = new TrackingFiler(processingEnv.getFiler());
+			this.messager = new TrackingMessager(processingEnv.getMessager());
+		}
+
+		@Override
+		public Elements getElementUtils()
+		{
+			return processingEnv.getElementUtils();
+		}
+
+		@Override
+		public Filer getFiler()
+		{
+			return filer;
+		}
+
+		@Override
+		public Locale getLocale()
+		{
+			return processingEnv.getLocale();
+		}
+
+		@Override
+		public Messager getMessager()
+		{
+			return messager;
+		}
+
+		@Override
+		public Map<String, String> getOptions()
+		{
+			return processingEnv.getOptions();
+		}
+
+		@Override
+		public SourceVersion getSourceVersion()
+		{
+			return processingEnv.getSourceVersion();
+		}
+
+		@Override
+		public Types getTypeUtils()
+		{
+			return processingEnv.getTypeUtils();
+		}
+	}
+
+	private class TrackingFiler implements Filer
+	{
+		private final Filer filer;
+
+		private TrackingFiler(Filer filer)
+		{
+			this.filer = filer;
+		}
+
+		@Override
+		public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException
+		{
+			JavaFileObject output = filer.createClassFile(name, originatingElements);
+			tracker.outputCreated(processorName, output, originatingElements);
+			return output;
+		}
+
+		@Override
+		public FileObject createResource(Location location, CharSequence pkg, CharSequence relativeName, Element... originatingElements)
+		    throws IOException
+		{
+			FileObject output = filer.createResource(location, pkg, relativeName, originatingElements);
+			tracker.outputCreated(processorName, output, originatingElements);
+			return output;
+		}
+
+		@Override
+		public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException
+		{
+			JavaFileObject output = filer.createSourceFile(name, originatingElements);
+			tracker.outputCreated(processorName, output, originatingElements);
+			return output;
+		}
+
+		@Override
+		public FileObject getResource(Location location, CharSequence pkg, CharSequence relativeName) throws IOException
+		{
+			return filer.getResource(location, pkg, relativeName);
+		}
+	}
+
+	private class TrackingMessager implements Messager
+	{
+		private final Messager messager;
+
+		private TrackingMessager(Messager messager)
+		{
+			this.messager = messager;
+		}
+
+		@Override
+		public void printMessage(Kind kind, CharSequence msg)
+		{
+			diagnostics.processorMessage(processorName, kind);
+			messager.printMessage(kind, msg);
+		}
+
+		@Override
+		public void printMessage(Kind kind, CharSequence msg, Element e)
+		{
+			diagnostics.processorMessage(processorName, kind);
+			messager.printMessage(kind, msg, e);
+		}
+
+		@Override
+		public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a)
+		{
+			diagnostics.processorMessage(processorName, kind);
+			messager.printMessage(kind, msg, e, a);
+		}
+
+		@Override
+		public void printMessage(Kind kind, CharSequence msg, Element e, AnnotationMirror a, AnnotationValue v)
+		{
+			diagnostics.processorMessage(processorName, kind);
+			messager.printMessage(kind, msg, e, a, v);
+		}
+	}
+}
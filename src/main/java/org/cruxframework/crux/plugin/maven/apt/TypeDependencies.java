@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.TypeVariable;
+import javax.lang.model.type.WildcardType;
+
+/**
+ * Find the types referenced by the signature of a type: supertypes, annotations, fields, methods
+ * and nested types. Method bodies are not inspected, as they are not visible to annotation processors.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+class TypeDependencies
+{
+	private final Set<TypeElement> referencedTypes = new LinkedHashSet<TypeElement>();
+	private final Set<TypeMirror> visitedTypes = new HashSet<TypeMirror>();
+
+	Set<TypeElement> getReferencedTypes()
+	{
+		return referencedTypes;
+	}
+
+	void scan(TypeElement type)
+	{
+		scanAnnotations(type);
+		scan(type.getSuperclass());
+		for (TypeMirror interfaceType : type.getInterfaces())
+		{
+			scan(interfaceType);
+		}
+		for (TypeParameterElement typeParameter : type.getTypeParameters())
+		{
+			for (TypeMirror bound : typeParameter.getBounds())
+			{
+				scan(bound);
+			}
+		}
+		for (Element member : type.getEnclosedElements())
+		{
+			scanAnnotations(member);
+			if (member instanceof TypeElement)
+			{
+				scan((TypeElement) member);
+			}
+			else if (member instanceof VariableElement)
+			{
+				scan(member.asType());
+			}
+			else if (member instanceof ExecutableElement)
+			{
+				scan((ExecutableElement) member);
+			}
+		}
+	}
+
+	private void scan(ExecutableElement method)
+	{
+		scan(method.getReturnType());
+		for (VariableElement parameter : method.getParameters())
+		{
+			scanAnnotations(parameter);
+			scan(parameter.asType());
+		}
+		for (TypeMirror thrownType : method.getThrownTypes())
+		{
+			scan(thrownType);
+		}
+	}
+
+	private void scan(TypeMirror type)
+	{
+		if (type == null || !visitedTypes.add(type))
+		{
+			return;
+		}
+		switch (type.getKind())
+		{
+			case DECLARED:
+				DeclaredType declaredType = (DeclaredType) type;
+				referencedTypes.add((TypeElement) declaredType.asElement());
+				for (TypeMirror typeArgument : declaredType.getTypeArguments())
+				{
+					scan(typeArgument);
+				}
+			break;
+			case ARRAY:
+				scan(((ArrayType) type).getComponentType());
+			break;
+			case TYPEVAR:
+				scan(((TypeVariable) type).getUpperBound());
+			break;
+			case WILDCARD:
+				WildcardType wildcardType = (WildcardType) type;
+				scan(wildcardType.getExtendsBound());
+				scan(wildcardType.getSuperBound());
+			break;
+			default:
+			break;
+		}
+	}
+
+	private void scanAnnotations(Element element)
+	{
+		for (AnnotationMirror annotation : element.getAnnotationMirrors())
+		{
+			scan(annotation.getAnnotationType());
+		}
+	}
+}
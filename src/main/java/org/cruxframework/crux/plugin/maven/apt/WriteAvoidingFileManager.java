@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.apt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingFileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+
+/**
+ * File manager that keeps the generated files in memory until they are closed, and only writes them
+ * when their content differs from the existing file. Files regenerated with the same content keep their
+ * modification time, so the tools that run after the annotation processors (compiler, IDE, packaging)
+ * do not see them as modified.
+ * <p>
+ * Classes compiled from the project sources are reported to the {@link ProcessingTracker} as outputs of
+ * their source files. Optionally, only classes compiled from generated sources are written, and the classes
+ * of the project sources are discarded.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class WriteAvoidingFileManager extends ForwardingJavaFileManager<JavaFileManager>
+{
+	private final Charset charset;
+	private final ProcessingTracker tracker;
+	private final boolean discardProjectClasses;
+	private final AtomicInteger writtenFiles = new AtomicInteger();
+	private final AtomicInteger unchangedFiles = new AtomicInteger();
+	private final Set<File> generatedSources = Collections.synchronizedSet(new LinkedHashSet<File>());
+
+	/**
+	 * @param fileManager file manager that creates the output files
+	 * @param charset encoding used by the writers of the output files
+	 * @param tracker tracker that records the compiled classes
+	 * @param discardProjectClasses if true, classes compiled from project sources are not written
+	 */
+	public WriteAvoidingFileManager(JavaFileManager fileManager, Charset charset, ProcessingTracker tracker, boolean discardProjectClasses)
+	{
+		super(fileManager);
+		this.charset = charset;
+		this.tracker = tracker;
+		this.discardProjectClasses = discardProjectClasses;
+	}
+
+	/**
+	 * Number of generated files written to disk.
+	 */
+	public int getWrittenFiles()
+	{
+		return writtenFiles.get();
+	}
+
+	/**
+	 * Number of generated files whose content was already on disk.
+	 */
+	public int getUnchangedFiles()
+	{
+		return unchangedFiles.get();
+	}
+
+	/**
+	 * Java sources created through this file manager, written or not.
+	 */
+	public Set<File> getGeneratedSources()
+	{
+		synchronized (generatedSources)
+		{
+			return new LinkedHashSet<File>(generatedSources);
+		}
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException
+	{
+		JavaFileObject fileObject = super.getJavaFileForOutput(location, className, kind, unwrap(sibling));
+		File file = toFile(fileObject);
+		if (file == null)
+		{
+			return fileObject;
+		}
+		if (kind == Kind.SOURCE)
+		{
+			generatedSources.add(file);
+		}
+		File sourceFile = toFile(sibling);
+		if (kind == Kind.CLASS && sourceFile != null)
+		{
+			if (discardProjectClasses && tracker.isProjectSource(sourceFile))
+			{
+				return new OutputJavaFileObject(fileObject, null);
+			}
+			tracker.classCompiled(sourceFile, file.getAbsolutePath());
+		}
+		return new OutputJavaFileObject(fileObject, file);
+	}
+
+	@Override
+	public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException
+	{
+		FileObject fileObject = super.getFileForOutput(location, packageName, relativeName, unwrap(sibling));
+		File file = toFile(fileObject);
+		if (file == null)
+		{
+			return fileObject;
+		}
+		return new OutputFileObject(fileObject, file);
+	}
+
+	/**
+	 * The compiler file managers only compare their own file objects. The Filer compares the files it created 
+	 * to refuse opening the same file twice.
+	 */
+	@Override
+	public boolean isSameFile(FileObject a, FileObject b)
+	{
+		return super.isSameFile(unwrap(a), unwrap(b));
+	}
+
+	@Override
+	public String inferBinaryName(Location location, JavaFileObject file)
+	{
+		return super.inferBinaryName(location, (JavaFileObject) unwrap(file));
+	}
+
+	/**
+	 * Retrieve the file object created by the wrapped file manager for the given one.
+	 */
+	private static FileObject unwrap(FileObject fileObject)
+	{
+		if (fileObject instanceof OutputJavaFileObject)
+		{
+			return ((OutputJavaFileObject) fileObject).getDelegate();
+		}
+		if (fileObject instanceof OutputFileObject)
+		{
+			return ((OutputFileObject) fileObject).getDelegate();
+		}
+		return fileObject;
+	}
+
+	private static File toFile(FileObject fileObject)
+	{
+		URI uri = (fileObject == null) ? null : fileObject.toUri();
+		if (uri != null && "file".equals(uri.getScheme()))
+		{
+			return new File(uri);
+		}
+		return null;
+	}
+
+	/**
+	 * Check if the file already has the given content.
+	 */
+	static boolean hasContent(File file, byte[] content) throws IOException
+	{
+		if (!file.isFile() || file.length() != content.length)
+		{
+			return false;
+		}
+		return Arrays.equals(content, Files.readAllBytes(file.toPath()));
+	}
+
+	/**
+	 * Generated Java file, buffered until closed. Without a file, the content is discarded.
+	 */
+	private class OutputJavaFileObject extends ForwardingJavaFileObject<JavaFileObject>
+	{
+		private final File file;
+
+		private OutputJavaFileObject(JavaFileObject fileObject, File file)
+		{
+			super(fileObject);
+			this.file = file;
+		}
+
+		private JavaFileObject getDelegate()
+		{
+			return fileObject;
+		}
+
+		@Override
+		public OutputStream openOutputStream() throws IOException
+		{
+			return (file == null) ? new ByteArrayOutputStream() : new BufferedOutput(file);
+		}
+
+		@Override
+		public Writer openWriter() throws IOException
+		{
+			return new OutputStreamWriter(openOutputStream(), charset);
+		}
+	}
+
+	/**
+	 * Generated resource, buffered until closed.
+	 */
+	private class OutputFileObject extends ForwardingFileObject<FileObject>
+	{
+		private final File file;
+
+		private OutputFileObject(FileObject fileObject, File file)
+		{
+			super(fileObject);
+			this.file = file;
+		}
+
+		private FileObject getDelegate()
+		{
+			return fileObject;
+		}
+
+		@Override
+		public OutputStream openOutputStream() throws IOException
+		{
+			return new BufferedOutput(file);
+		}
+
+		@Override
+		public Writer openWriter() throws IOException
+		{
+			return new OutputStreamWriter(openOutputStream(), charset);
+		}
+	}
+
+	private class BufferedOutput extends ByteArrayOutputStream
+	{
+		private final File file;
+		private boolean closed;
+
+		private BufferedOutput(File file)
+		{
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			byte[] content = toByteArray();
+			if (hasContent(file, content))
+			{
+				unchangedFiles.incrementAndGet();
+				return;
+			}
+			File parent = file.getParentFile();
+			if (parent != null && !parent.exists())
+			{
+				parent.mkdirs();
+			}
+			OutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(content);
+			}
+			finally
+			{
+				out.close();
+			}
+			writtenFiles.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records the classpath entries selected for a set of required packages, together with the fingerprint
+ * of the complete classpath they were selected from. The selection is only valid while that fingerprint
+ * does not change.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ClasspathSelection
+{
+	private static final int MAGIC = 0x43525843; // "CRXC"
+	private static final int VERSION = 1;
+
+	private final byte[] fingerprint;
+	private final Set<String> packages;
+	private final List<File> entries;
+
+	public ClasspathSelection(byte[] fingerprint, Set<String> packages, List<File> entries)
+	{
+		this.fingerprint = fingerprint;
+		this.packages = packages;
+		this.entries = entries;
+	}
+
+	/**
+	 * Fingerprint of the complete classpath.
+	 */
+	public byte[] getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * Packages the selection was computed for.
+	 */
+	public Set<String> getPackages()
+	{
+		return Collections.unmodifiableSet(packages);
+	}
+
+	/**
+	 * Selected classpath entries, in the complete classpath order.
+	 */
+	public List<File> getEntries()
+	{
+		return Collections.unmodifiableList(entries);
+	}
+
+	public void write(File file) throws IOException
+	{
+		File tempFile = StateFiles.getTempFile(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeShort(fingerprint.length);
+			out.write(fingerprint);
+			out.writeInt(packages.size());
+			for (String packageName : packages)
+			{
+				out.writeUTF(packageName);
+			}
+			out.writeInt(entries.size());
+			for (File entry : entries)
+			{
+				out.writeUTF(entry.getPath());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		StateFiles.replace(tempFile, file);
+	}
+
+	/**
+	 * Read a selection previously written by {@link #write(File)}.
+	 *
+	 * @param file selection file
+	 * @return the selection or null if the file does not exist or was written by an incompatible version
+	 * @throws IOException
+	 */
+	public static ClasspathSelection read(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				return null;
+			}
+			byte[] fingerprint = new byte[in.readUnsignedShort()];
+			in.readFully(fingerprint);
+			int packageCount = in.readInt();
+			Set<String> packages = new HashSet<String>(packageCount * 2);
+			for (int i = 0; i < packageCount; i++)
+			{
+				packages.add(in.readUTF());
+			}
+			int entryCount = in.readInt();
+			List<File> entries = new ArrayList<File>(entryCount);
+			for (int i = 0; i < entryCount; i++)
+			{
+				entries.add(new File(in.readUTF()));
+			}
+			return new ClasspathSelection(fingerprint, packages, entries);
+		}
+		catch (EOFException e)
+		{
+			// truncated file. Handle it as an absent one.
+			return null;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
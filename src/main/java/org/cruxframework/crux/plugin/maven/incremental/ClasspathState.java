@@ -0,0 +1,407 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Records the state of the classpath used by the annotation processors, and of the processors themselves.
+ * Each classpath entry is identified by its path, size and modification time (for folders, the total size
+ * and the latest modification time of their files). The content hash of an entry is only computed when
+ * those change, to tell a modified entry from a touched one. The packages of each entry are recorded to
+ * find which packages a modification affects.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class ClasspathState
+{
+	/**
+	 * Added to the changed packages when the affected packages can not be determined.
+	 */
+	public static final String ALL_PACKAGES = "*";
+
+	private static final int MAGIC = 0x43525850; // "CRXP"
+	private static final int VERSION = 1;
+
+	private final String processorsFingerprint;
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private boolean changed;
+
+	public ClasspathState()
+	{
+		this("");
+	}
+
+	private ClasspathState(String processorsFingerprint)
+	{
+		this.processorsFingerprint = processorsFingerprint;
+	}
+
+	/**
+	 * Identification of the annotation processors versions.
+	 */
+	public String getProcessorsFingerprint()
+	{
+		return processorsFingerprint;
+	}
+
+	/**
+	 * Check if this state differs from the one it was scanned from.
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+
+	/**
+	 * Build the state for the current classpath, comparing it with this one.
+	 *
+	 * @param classpath current classpath entries
+	 * @param currentProcessorsFingerprint identification of the current processors versions
+	 * @param changedPackages receives the packages of the added, removed or modified entries
+	 * @return the current state
+	 * @throws IOException
+	 */
+	public ClasspathState scan(Collection<File> classpath, String currentProcessorsFingerprint, Set<String> changedPackages) throws IOException
+	{
+		ClasspathState result = new ClasspathState(currentProcessorsFingerprint);
+		result.changed = !processorsFingerprint.equals(currentProcessorsFingerprint) || entries.size() != classpath.size();
+		for (File file : classpath)
+		{
+			String path = file.getAbsolutePath();
+			Entry previous = entries.get(path);
+			long[] metadata = getMetadata(file);
+			Entry entry;
+			if (previous != null && previous.size == metadata[0] && previous.lastModified == metadata[1])
+			{
+				entry = previous;
+			}
+			else
+			{
+				entry = new Entry(metadata[0], metadata[1]);
+				if (previous != null)
+				{
+					entry.hash = hash(file);
+				}
+				if (previous != null && previous.hash != null && Arrays.equals(previous.hash, entry.hash))
+				{
+					entry.packages = previous.packages;
+				}
+				else
+				{
+					entry.packages = getPackages(file);
+					changedPackages.addAll(entry.packages);
+					addPackages(previous, changedPackages);
+				}
+				result.changed = true;
+			}
+			result.entries.put(path, entry);
+		}
+		for (Map.Entry<String, Entry> previous : entries.entrySet())
+		{
+			if (!result.entries.containsKey(previous.getKey()))
+			{
+				addPackages(previous.getValue(), changedPackages);
+				result.changed = true;
+			}
+		}
+		return result;
+	}
+
+	public void write(File file) throws IOException
+	{
+		File tempFile = StateFiles.getTempFile(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(processorsFingerprint);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet())
+			{
+				Entry entry = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeShort((entry.hash == null) ? 0 : entry.hash.length);
+				if (entry.hash != null)
+				{
+					out.write(entry.hash);
+				}
+				out.writeInt((entry.packages == null) ? -1 : entry.packages.size());
+				if (entry.packages != null)
+				{
+					for (String packageName : entry.packages)
+					{
+						out.writeUTF(packageName);
+					}
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		StateFiles.replace(tempFile, file);
+	}
+
+	/**
+	 * Read a state previously written by {@link #write(File)}.
+	 *
+	 * @param file state file
+	 * @return the state or null if the file does not exist or was written by an incompatible version
+	 * @throws IOException
+	 */
+	public static ClasspathState read(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				return null;
+			}
+			ClasspathState state = new ClasspathState(in.readUTF());
+			int size = in.readInt();
+			for (int i = 0; i < size; i++)
+			{
+				String path = in.readUTF();
+				Entry entry = new Entry(in.readLong(), in.readLong());
+				int hashLength = in.readUnsignedShort();
+				if (hashLength > 0)
+				{
+					entry.hash = new byte[hashLength];
+					in.readFully(entry.hash);
+				}
+				int packageCount = in.readInt();
+				if (packageCount >= 0)
+				{
+					entry.packages = new HashSet<String>(packageCount * 2);
+					for (int j = 0; j < packageCount; j++)
+					{
+						entry.packages.add(in.readUTF());
+					}
+				}
+				state.entries.put(path, entry);
+			}
+			return state;
+		}
+		catch (EOFException e)
+		{
+			// truncated state. Handle it as an absent one.
+			return null;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void addPackages(Entry entry, Set<String> changedPackages)
+	{
+		if (entry != null)
+		{
+			if (entry.packages == null)
+			{
+				changedPackages.add(ALL_PACKAGES);
+			}
+			else
+			{
+				changedPackages.addAll(entry.packages);
+			}
+		}
+	}
+
+	private static long[] getMetadata(File file)
+	{
+		long[] metadata = new long[] { file.length(), file.lastModified() };
+		if (file.isDirectory())
+		{
+			metadata[0] = 0;
+			addMetadata(file, metadata);
+		}
+		return metadata;
+	}
+
+	private static void addMetadata(File dir, long[] metadata)
+	{
+		File[] children = dir.listFiles();
+		if (children == null)
+		{
+			return;
+		}
+		for (File child : children)
+		{
+			metadata[1] = Math.max(metadata[1], child.lastModified());
+			if (child.isDirectory())
+			{
+				addMetadata(child, metadata);
+			}
+			else
+			{
+				metadata[0] += child.length();
+			}
+		}
+	}
+
+	/**
+	 * Compute the content hash of an archive, or of all the files (names and contents) of a folder.
+	 */
+	private static byte[] hash(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return new byte[0];
+		}
+		if (!file.isDirectory())
+		{
+			return SourceIndex.digest(file);
+		}
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			for (Map.Entry<String, File> entry : listFiles(file).entrySet())
+			{
+				digest.update(entry.getKey().getBytes("UTF-8"));
+				digest.update(SourceIndex.digest(entry.getValue()));
+			}
+			return digest.digest();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("Error computing classpath entry hash", e);
+		}
+	}
+
+	private static Set<String> getPackages(File file) throws IOException
+	{
+		Set<String> packages = new HashSet<String>();
+		if (file.isDirectory())
+		{
+			for (String name : listFiles(file).keySet())
+			{
+				addPackage(name, packages);
+			}
+		}
+		else if (file.isFile())
+		{
+			ZipFile zipFile;
+			try
+			{
+				zipFile = new ZipFile(file);
+			}
+			catch (ZipException e)
+			{
+				return Collections.singleton(ALL_PACKAGES);
+			}
+			try
+			{
+				Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+				while (zipEntries.hasMoreElements())
+				{
+					addPackage(zipEntries.nextElement().getName(), packages);
+				}
+			}
+			finally
+			{
+				zipFile.close();
+			}
+		}
+		return packages;
+	}
+
+	private static void addPackage(String name, Set<String> packages)
+	{
+		if (name.endsWith(".class"))
+		{
+			int index = name.lastIndexOf('/');
+			if (index > 0)
+			{
+				packages.add(name.substring(0, index).replace('/', '.'));
+			}
+		}
+	}
+
+	private static Map<String, File> listFiles(File dir)
+	{
+		Map<String, File> files = new TreeMap<String, File>();
+		listFiles(dir, "", files);
+		return files;
+	}
+
+	private static void listFiles(File dir, String relativePath, Map<String, File> files)
+	{
+		File[] children = dir.listFiles();
+		if (children == null)
+		{
+			return;
+		}
+		for (File child : children)
+		{
+			String path = relativePath + child.getName();
+			if (child.isDirectory())
+			{
+				listFiles(child, path + "/", files);
+			}
+			else
+			{
+				files.put(path, child);
+			}
+		}
+	}
+
+	private static class Entry
+	{
+		private final long size;
+		private final long lastModified;
+		private byte[] hash;
+		private Set<String> packages;
+
+		private Entry(long size, long lastModified)
+		{
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+}
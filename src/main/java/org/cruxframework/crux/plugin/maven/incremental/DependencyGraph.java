@@ -0,0 +1,311 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records, for each source file handled by an annotation processor, the source files it depends on and
+ * the files generated from it. Generated files are split in two groups:
+ * <ul>
+ * <li>exclusive outputs, generated from a single source file, that can be deleted together with it;</li>
+ * <li>aggregated outputs, like the services and libraries registries, built from many source files.</li>
+ * </ul>
+ * The packages of the classpath types referenced by each source are also recorded, so changes on the
+ * classpath only affect the sources using them, together with the annotation processors that handled
+ * each source.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class DependencyGraph
+{
+	private static final int MAGIC = 0x43525847; // "CRXG"
+	private static final int VERSION = 3;
+
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+	public Node get(String source)
+	{
+		return nodes.get(source);
+	}
+
+	public Set<String> getSources()
+	{
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * Register (or replace) the node for the given source.
+	 */
+	public void put(String source, Set<String> dependencies, Set<String> outputs, Set<String> aggregatedOutputs, Set<String> packages, 
+					Set<String> processors)
+	{
+		nodes.put(source, new Node(dependencies, outputs, aggregatedOutputs, packages, processors));
+	}
+
+	public Node remove(String source)
+	{
+		return nodes.remove(source);
+	}
+
+	/**
+	 * Retrieve all sources that depend, directly or transitively, on any of the given sources.
+	 *
+	 * @param changedSources modified or deleted sources
+	 * @return dependent sources, not including the given ones.
+	 */
+	public Set<String> getDependents(Collection<String> changedSources)
+	{
+		Map<String, Set<String>> reverse = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Node> entry : nodes.entrySet())
+		{
+			for (String dependency : entry.getValue().dependencies)
+			{
+				Set<String> dependents = reverse.get(dependency);
+				if (dependents == null)
+				{
+					dependents = new HashSet<String>();
+					reverse.put(dependency, dependents);
+				}
+				dependents.add(entry.getKey());
+			}
+		}
+
+		Set<String> result = new LinkedHashSet<String>();
+		Deque<String> pending = new ArrayDeque<String>(changedSources);
+		while (!pending.isEmpty())
+		{
+			Set<String> dependents = reverse.get(pending.poll());
+			if (dependents != null)
+			{
+				for (String dependent : dependents)
+				{
+					if (!changedSources.contains(dependent) && result.add(dependent))
+					{
+						pending.add(dependent);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the sources handled by the given annotation processor.
+	 *
+	 * @param processor processor class name
+	 * @return source paths
+	 */
+	public Set<String> getSourcesProcessedBy(String processor)
+	{
+		Set<String> result = new HashSet<String>();
+		for (Map.Entry<String, Node> entry : nodes.entrySet())
+		{
+			if (entry.getValue().processors.contains(processor))
+			{
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the sources that reference classpath types from any of the given packages.
+	 *
+	 * @param packages packages names
+	 * @return source paths
+	 */
+	public Set<String> getSourcesReferencing(Collection<String> packages)
+	{
+		Set<String> result = new HashSet<String>();
+		for (Map.Entry<String, Node> entry : nodes.entrySet())
+		{
+			if (!Collections.disjoint(entry.getValue().packages, packages))
+			{
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	public void write(File file) throws IOException
+	{
+		File tempFile = StateFiles.getTempFile(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(nodes.size());
+			for (Map.Entry<String, Node> entry : nodes.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				Node node = entry.getValue();
+				writeSet(out, node.dependencies);
+				writeSet(out, node.outputs);
+				writeSet(out, node.aggregatedOutputs);
+				writeSet(out, node.packages);
+				writeSet(out, node.processors);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		StateFiles.replace(tempFile, file);
+	}
+
+	/**
+	 * Read a graph previously written by {@link #write(File)}.
+	 *
+	 * @param file graph file
+	 * @return the graph or null if the file does not exist or was written by an incompatible version
+	 * @throws IOException
+	 */
+	public static DependencyGraph read(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				return null;
+			}
+			DependencyGraph graph = new DependencyGraph();
+			int size = in.readInt();
+			for (int i = 0; i < size; i++)
+			{
+				String source = in.readUTF();
+				graph.nodes.put(source, new Node(readSet(in), readSet(in), readSet(in), readSet(in), readSet(in)));
+			}
+			return graph;
+		}
+		catch (EOFException e)
+		{
+			// truncated graph. Handle it as an absent one.
+			return null;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void writeSet(DataOutputStream out, Set<String> values) throws IOException
+	{
+		out.writeInt(values.size());
+		for (String value : values)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	private static Set<String> readSet(DataInputStream in) throws IOException
+	{
+		int size = in.readInt();
+		if (size == 0)
+		{
+			return Collections.emptySet();
+		}
+		Set<String> values = new HashSet<String>(size * 2);
+		for (int i = 0; i < size; i++)
+		{
+			values.add(in.readUTF());
+		}
+		return values;
+	}
+
+	public static class Node
+	{
+		private final Set<String> dependencies;
+		private final Set<String> outputs;
+		private final Set<String> aggregatedOutputs;
+		private final Set<String> packages;
+		private final Set<String> processors;
+
+		private Node(Set<String> dependencies, Set<String> outputs, Set<String> aggregatedOutputs, Set<String> packages, 
+					Set<String> processors)
+		{
+			this.dependencies = dependencies;
+			this.outputs = outputs;
+			this.aggregatedOutputs = aggregatedOutputs;
+			this.packages = packages;
+			this.processors = processors;
+		}
+
+		/**
+		 * Sources this one depends on.
+		 */
+		public Set<String> getDependencies()
+		{
+			return Collections.unmodifiableSet(dependencies);
+		}
+
+		/**
+		 * Files generated exclusively from this source.
+		 */
+		public Set<String> getOutputs()
+		{
+			return Collections.unmodifiableSet(outputs);
+		}
+
+		/**
+		 * Files generated from this source together with other ones.
+		 */
+		public Set<String> getAggregatedOutputs()
+		{
+			return Collections.unmodifiableSet(aggregatedOutputs);
+		}
+
+		/**
+		 * Packages of the classpath types referenced by this source.
+		 */
+		public Set<String> getPackages()
+		{
+			return Collections.unmodifiableSet(packages);
+		}
+
+		/**
+		 * Class names of the annotation processors that handled this source.
+		 */
+		public Set<String> getProcessors()
+		{
+			return Collections.unmodifiableSet(processors);
+		}
+	}
+}
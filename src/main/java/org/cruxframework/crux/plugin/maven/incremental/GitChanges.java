@@ -0,0 +1,300 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.util.cli.CommandLineException;
+import org.codehaus.plexus.util.cli.Commandline;
+import org.codehaus.plexus.util.cli.StreamConsumer;
+import org.codehaus.plexus.util.cli.StreamPumper;
+
+/**
+ * Files that may have changed since a previous build, as reported by the local git repository. The
+ * repository already tracks the state of each file, so the source folders do not need to be walked: only the
+ * reported files must be checked.
+ * <p>
+ * A file may differ from the content seen by the previous build if it differs from the commit checked out at
+ * that build, if it is not tracked, or if it was already modified (and not committed) at that build. The last
+ * ones are given by the caller, which must record the {@link #getHead() head commit} and the
+ * {@link #getDirtyPaths() modified files} of each build. The reported files are only candidates: some of them
+ * may still have the content seen by the previous build.
+ * <p>
+ * Files ignored by git are never reported. Folders containing them must be scanned by the caller, see
+ * {@link #getIgnoredPaths(File)}.
+ * <p>
+ * Only the local <code>git</code> executable is used, and no remote is ever contacted.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class GitChanges
+{
+	private final File repositoryRoot;
+	private final String head;
+	private final Set<String> dirtyPaths;
+	private final Set<String> changedPaths;
+	private final Map<String, List<String>> ignoredPaths = new HashMap<String, List<String>>();
+
+	private GitChanges(File repositoryRoot, String head, Set<String> dirtyPaths, Set<String> changedPaths)
+	{
+		this.repositoryRoot = repositoryRoot;
+		this.head = head;
+		this.dirtyPaths = dirtyPaths;
+		this.changedPaths = changedPaths;
+	}
+
+	/**
+	 * Ask the repository that contains the given folder for the files changed since a previous build.
+	 *
+	 * @param directory a folder of the working tree
+	 * @param previousHead commit checked out at the previous build. May be null
+	 * @param previousDirtyPaths files modified at the previous build, relative to the repository root
+	 * @return the changes, or null if the folder is not inside a git working tree or git is not available
+	 * @throws IOException if git failed
+	 */
+	public static GitChanges read(File directory, String previousHead, Collection<String> previousDirtyPaths) throws IOException
+	{
+		List<String> output = new ArrayList<String>();
+		if (git(directory, output, "rev-parse", "--show-toplevel") != 0 || output.isEmpty())
+		{
+			return null;
+		}
+		File repositoryRoot = new File(output.get(0)).getCanonicalFile();
+
+		output.clear();
+		if (git(repositoryRoot, output, "rev-parse", "--verify", "-q", "HEAD") != 0 || output.isEmpty())
+		{
+			// no commits yet
+			return null;
+		}
+		String head = output.get(0).trim();
+
+		Set<String> untracked = new LinkedHashSet<String>();
+		checkedGit(repositoryRoot, untracked, "ls-files", "-z", "--others", "--exclude-standard");
+		Set<String> dirtyPaths = new LinkedHashSet<String>(untracked);
+		checkedGit(repositoryRoot, dirtyPaths, "diff", "-z", "--name-only", "--no-renames", "HEAD");
+
+		Set<String> changedPaths = null;
+		if (previousHead != null && (previousHead.equals(head) || isCommit(repositoryRoot, previousHead)))
+		{
+			changedPaths = new LinkedHashSet<String>(dirtyPaths);
+			changedPaths.addAll(previousDirtyPaths);
+			if (!previousHead.equals(head))
+			{
+				checkedGit(repositoryRoot, changedPaths, "diff", "-z", "--name-only", "--no-renames", previousHead);
+			}
+		}
+		return new GitChanges(repositoryRoot, head, dirtyPaths, changedPaths);
+	}
+
+	/**
+	 * Canonical path of the working tree root.
+	 */
+	public File getRepositoryRoot()
+	{
+		return repositoryRoot;
+	}
+
+	/**
+	 * Commit checked out on this build.
+	 */
+	public String getHead()
+	{
+		return head;
+	}
+
+	/**
+	 * Files modified, deleted or not tracked on this build, relative to the repository root, using '/'.
+	 */
+	public Set<String> getDirtyPaths()
+	{
+		return Collections.unmodifiableSet(dirtyPaths);
+	}
+
+	/**
+	 * Check if the changes since the previous build are known. They are not if no previous build was recorded
+	 * or if its commit is not on the repository anymore.
+	 */
+	public boolean hasPreviousBuild()
+	{
+		return changedPaths != null;
+	}
+
+	/**
+	 * Check if the repository contains the given folder.
+	 */
+	public boolean contains(File directory) throws IOException
+	{
+		String path = directory.getCanonicalPath();
+		return path.equals(repositoryRoot.getPath()) || path.startsWith(repositoryRoot.getPath() + File.separator);
+	}
+
+	/**
+	 * Retrieve the files under the given folder that may have changed (or were deleted) since the previous build.
+	 *
+	 * @param directory a folder inside the repository
+	 * @return paths relative to the folder, using the platform separator
+	 * @throws IOException
+	 */
+	public List<String> getChangedPaths(File directory) throws IOException
+	{
+		String prefix = getPrefix(directory);
+		List<String> result = new ArrayList<String>();
+		if (changedPaths != null)
+		{
+			for (String path : changedPaths)
+			{
+				if (path.startsWith(prefix))
+				{
+					result.add(path.substring(prefix.length()).replace('/', File.separatorChar));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the files under the given folder that are ignored by git, so their changes are not reported.
+	 *
+	 * @param directory a folder inside the repository
+	 * @return paths relative to the folder, using the platform separator
+	 * @throws IOException if git failed
+	 */
+	public synchronized List<String> getIgnoredPaths(File directory) throws IOException
+	{
+		String prefix = getPrefix(directory);
+		List<String> result = ignoredPaths.get(prefix);
+		if (result == null)
+		{
+			List<String> output = new ArrayList<String>();
+			checkedGit(repositoryRoot, output, "ls-files", "-z", "--others", "--ignored", "--exclude-standard", "--", 
+				":(literal)" + (prefix.length() > 0 ? prefix : "."));
+			result = new ArrayList<String>();
+			for (String path : output)
+			{
+				if (path.startsWith(prefix))
+				{
+					result.add(path.substring(prefix.length()).replace('/', File.separatorChar));
+				}
+			}
+			ignoredPaths.put(prefix, result);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Path of a folder relative to the repository root, using '/' and ending with '/' (empty for the root).
+	 */
+	private String getPrefix(File directory) throws IOException
+	{
+		String prefix = repositoryRoot.toPath().relativize(directory.getCanonicalFile().toPath()).toString().replace(File.separatorChar, '/');
+		if (prefix.length() > 0)
+		{
+			prefix += "/";
+		}
+		return prefix;
+	}
+
+	private static boolean isCommit(File repositoryRoot, String commit) throws IOException
+	{
+		return git(repositoryRoot, new ArrayList<String>(), "cat-file", "-e", commit + "^{commit}") == 0;
+	}
+
+	private static void checkedGit(File directory, Collection<String> output, String... args) throws IOException
+	{
+		int status = git(directory, output, args);
+		if (status != 0)
+		{
+			throw new IOException("git " + args[0] + " failed with status " + status);
+		}
+	}
+
+	/**
+	 * Run git. Its output is read as UTF-8, the encoding of the paths written by git, instead of the platform 
+	 * encoding. Output of commands run with <code>-z</code> is split on the NUL separators, keeping any line 
+	 * break inside the paths.
+	 */
+	private static int git(File directory, Collection<String> output, String... args) throws IOException
+	{
+		Commandline cmd = new Commandline();
+		cmd.setExecutable("git");
+		cmd.setWorkingDirectory(directory.getAbsolutePath());
+		cmd.addArguments(args);
+		Process process;
+		try
+		{
+			process = cmd.execute();
+		}
+		catch (CommandLineException e)
+		{
+			// git is not installed
+			return -1;
+		}
+		StreamPumper errPumper = new StreamPumper(process.getErrorStream(), new StreamConsumer()
+		{
+			@Override
+			public void consumeLine(String line)
+			{
+				// errors are reported by the exit status
+			}
+		});
+		errPumper.start();
+		String out;
+		int status;
+		try
+		{
+			process.getOutputStream().close();
+			out = new String(IOUtil.toByteArray(process.getInputStream()), "UTF-8");
+			status = process.waitFor();
+			errPumper.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running git " + args[0]);
+		}
+		finally
+		{
+			process.destroy();
+		}
+
+		boolean nulSeparated = false;
+		for (String arg : args)
+		{
+			nulSeparated |= "-z".equals(arg);
+		}
+		for (String path : out.split(nulSeparated ? "\0" : "\n"))
+		{
+			String value = nulSeparated ? path : path.trim();
+			if (value.length() > 0)
+			{
+				output.add(value);
+			}
+		}
+		return status;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the folders (packages, for classes) found on each archive of the classpath, so a class or a
+ * resource can be looked up only on the archives that contain its folder. Archives are identified by their
+ * path, size and modification time, and only read again when those change. The index is persisted on a
+ * {@link StateStore} namespace.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class PackageIndex
+{
+	/**
+	 * Marks an archive that could not be read as a zip file, so it must be searched for any folder.
+	 */
+	public static final String ALL_FOLDERS = "*";
+
+	private final StateStore.Namespace state;
+
+	/**
+	 * @param state namespace where the index is persisted
+	 */
+	public PackageIndex(StateStore.Namespace state)
+	{
+		this.state = state;
+	}
+
+	/**
+	 * Retrieve the folders of an archive, reading it only if it changed since it was indexed.
+	 *
+	 * @param archive classpath archive
+	 * @return the folders containing any file, using '/' and without the trailing separator. The root folder is
+	 * the empty string
+	 * @throws IOException
+	 */
+	public Set<String> getFolders(File archive) throws IOException
+	{
+		String key = archive.getAbsolutePath();
+		long size = archive.length();
+		long lastModified = archive.lastModified();
+		byte[] value = state.get(key);
+		if (value != null)
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+			if (in.readLong() == size && in.readLong() == lastModified)
+			{
+				int count = in.readInt();
+				Set<String> folders = new HashSet<String>(count * 2);
+				for (int i = 0; i < count; i++)
+				{
+					folders.add(in.readUTF());
+				}
+				return folders;
+			}
+		}
+
+		Set<String> folders = readFolders(archive);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(size);
+		out.writeLong(lastModified);
+		out.writeInt(folders.size());
+		for (String folder : folders)
+		{
+			out.writeUTF(folder);
+		}
+		out.flush();
+		state.put(key, bytes.toByteArray());
+		return folders;
+	}
+
+	/**
+	 * Persist the archives indexed since the previous call.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException
+	{
+		state.commit();
+	}
+
+	private static Set<String> readFolders(File archive) throws IOException
+	{
+		Set<String> folders = new HashSet<String>();
+		ZipFile zipFile;
+		try
+		{
+			zipFile = new ZipFile(archive);
+		}
+		catch (ZipException e)
+		{
+			return Collections.singleton(ALL_FOLDERS);
+		}
+		try
+		{
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements())
+			{
+				ZipEntry entry = zipEntries.nextElement();
+				if (!entry.isDirectory())
+				{
+					int index = entry.getName().lastIndexOf('/');
+					folders.add((index < 0) ? "" : entry.getName().substring(0, index));
+				}
+			}
+		}
+		finally
+		{
+			zipFile.close();
+		}
+		return folders;
+	}
+}
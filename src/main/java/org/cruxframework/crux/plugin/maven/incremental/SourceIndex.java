@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of the source files seen by a previous build. Each entry records the file size, its
+ * last modification time and a digest of its content. Size and timestamp are only used as a fast path:
+ * when they do not match, the content digest decides if the file was really modified.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class SourceIndex
+{
+	private static final int MAGIC = 0x43525849; // "CRXI"
+	private static final int VERSION = 1;
+	private static final String DIGEST_ALGORITHM = "MD5";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Map<String, Entry> entries;
+	private boolean changed;
+	private long timestamp;
+
+	public SourceIndex()
+	{
+		this(16);
+	}
+
+	private SourceIndex(int expectedSize)
+	{
+		entries = new HashMap<String, Entry>(Math.max(16, (int) (expectedSize / 0.75f) + 1));
+	}
+
+	public Entry get(String path)
+	{
+		return entries.get(path);
+	}
+
+	public Set<String> getPaths()
+	{
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Retrieve the paths present on this index that are not present on the given one.
+	 * @param current the index that represents the current state of the source tree
+	 * @return deleted paths
+	 */
+	public Set<String> getDeletedPaths(SourceIndex current)
+	{
+		Set<String> deleted = new HashSet<String>();
+		for (String path : entries.keySet())
+		{
+			if (!current.entries.containsKey(path))
+			{
+				deleted.add(path);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Time (in milliseconds) when this index was last written. Zero for indexes never persisted.
+	 * @return index timestamp
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * Inform if this index differs from the one it was scanned from, including entries that only had
+	 * their metadata refreshed.
+	 * @return true if the index must be saved.
+	 */
+	public boolean isChanged()
+	{
+		return changed;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Build a new index for the given files, using this index as baseline. Every file whose content differs
+	 * from its baseline entry (or has no baseline entry) is added to the modified collection.
+	 *
+	 * @param files current source files, as found on the source folders snapshots. Their paths are already canonical
+	 * @param modified receives the modified files
+	 * @return the index representing the current state of the files
+	 * @throws IOException
+	 */
+	public SourceIndex scan(Collection<SourceTree.FileEntry> files, Collection<File> modified) throws IOException
+	{
+		SourceIndex current = new SourceIndex(files.size());
+		current.changed = (files.size() != entries.size());
+		for (SourceTree.FileEntry file : files)
+		{
+			String path = file.getFile().getPath();
+			Entry previous = entries.get(path);
+			Entry entry = check(file, path, previous);
+			if (entry != previous)
+			{
+				current.changed = true;
+				if (previous == null || !previous.hasSameContent(entry))
+				{
+					modified.add(file.getFile());
+				}
+			}
+			current.entries.put(path, entry);
+		}
+		return current;
+	}
+
+	/**
+	 * Create a new index from this one, checking only the given files. Used when the build environment already
+	 * knows which files were changed or deleted, so the source folders do not need to be walked.
+	 *
+	 * @param changed files created or changed
+	 * @param deleted paths of the deleted files
+	 * @param modified receives the files whose content changed
+	 * @return the new index
+	 * @throws IOException
+	 */
+	public SourceIndex update(Collection<SourceTree.FileEntry> changed, Collection<String> deleted, Collection<File> modified) 
+		throws IOException
+	{
+		SourceIndex current = new SourceIndex(entries.size() + changed.size());
+		current.entries.putAll(entries);
+		for (String path : deleted)
+		{
+			if (current.entries.remove(path) != null)
+			{
+				current.changed = true;
+			}
+		}
+		for (SourceTree.FileEntry file : changed)
+		{
+			String path = file.getFile().getPath();
+			Entry previous = entries.get(path);
+			Entry entry = check(file, path, previous);
+			if (entry != previous)
+			{
+				current.changed = true;
+				if (previous == null || !previous.hasSameContent(entry))
+				{
+					modified.add(file.getFile());
+				}
+			}
+			current.entries.put(path, entry);
+		}
+		return current;
+	}
+
+	/**
+	 * Write this index to the given file. The content is written to a temporary file first and then renamed,
+	 * so an interrupted build never leaves a truncated index behind.
+	 * <p>
+	 * Paths are written sorted and front coded (each path stores only the suffix that differs from the
+	 * previous one), what keeps the file small and fast to decode for large source trees.
+	 *
+	 * @param file target file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException
+	{
+		File tempFile = StateFiles.getTempFile(file);
+		long now = System.currentTimeMillis();
+		String[] paths = entries.keySet().toArray(new String[entries.size()]);
+		Arrays.sort(paths);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(now);
+			out.writeInt(paths.length);
+			byte[] previousPath = new byte[0];
+			for (String path : paths)
+			{
+				Entry entry = entries.get(path);
+				byte[] pathBytes = path.getBytes(UTF_8);
+				int prefix = commonPrefix(previousPath, pathBytes);
+				out.writeShort(prefix);
+				out.writeShort(pathBytes.length - prefix);
+				out.write(pathBytes, prefix, pathBytes.length - prefix);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeByte(entry.hash.length);
+				out.write(entry.hash);
+				previousPath = pathBytes;
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		StateFiles.replace(tempFile, file);
+		timestamp = now;
+		changed = false;
+	}
+
+	/**
+	 * Read an index previously written by {@link #write(File)}.
+	 *
+	 * @param file index file
+	 * @return the index or null if the file does not exist or was written by an incompatible version
+	 * @throws IOException
+	 */
+	public static SourceIndex read(File file) throws IOException
+	{
+		if (!file.exists())
+		{
+			return null;
+		}
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		try
+		{
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+			{
+				return null;
+			}
+			long timestamp = in.getLong();
+			int size = in.getInt();
+			SourceIndex index = new SourceIndex(size);
+			index.timestamp = timestamp;
+			byte[] pathBytes = new byte[256];
+			for (int i = 0; i < size; i++)
+			{
+				int prefix = in.getShort() & 0xFFFF;
+				int suffix = in.getShort() & 0xFFFF;
+				if (prefix + suffix > pathBytes.length)
+				{
+					pathBytes = Arrays.copyOf(pathBytes, Math.max(prefix + suffix, pathBytes.length * 2));
+				}
+				in.get(pathBytes, prefix, suffix);
+				String path = new String(pathBytes, 0, prefix + suffix, UTF_8);
+				long fileSize = in.getLong();
+				long lastModified = in.getLong();
+				byte[] hash = new byte[in.get() & 0xFF];
+				in.get(hash);
+				index.entries.put(path, new Entry(path, fileSize, lastModified, hash, timestamp));
+			}
+			return index;
+		}
+		catch (BufferUnderflowException e)
+		{
+			// truncated index. Handle it as an absent one.
+			return null;
+		}
+	}
+
+	/**
+	 * Compute the content digest for the given file.
+	 * @param file
+	 * @return digest bytes
+	 * @throws IOException
+	 */
+	public static byte[] digest(File file) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("Digest algorithm not available: " + DIGEST_ALGORITHM, e);
+		}
+		byte[] buffer = new byte[8192];
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			int read;
+			while ((read = in.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private static int commonPrefix(byte[] previous, byte[] current)
+	{
+		int max = Math.min(Math.min(previous.length, current.length), 0xFFFF);
+		int i = 0;
+		while (i < max && previous[i] == current[i])
+		{
+			i++;
+		}
+		return i;
+	}
+
+	private static Entry check(SourceTree.FileEntry file, String path, Entry previous) throws IOException
+	{
+		long size = file.getSize();
+		long lastModified = file.getLastModified();
+		if (previous != null && previous.size == size && previous.lastModified == lastModified && !previous.isRacy())
+		{
+			return previous;
+		}
+		return new Entry(path, size, lastModified, file.getHash(), 0);
+	}
+
+	public static class Entry
+	{
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final byte[] hash;
+		private final long indexTimestamp;
+
+		private Entry(String path, long size, long lastModified, byte[] hash, long indexTimestamp)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.indexTimestamp = indexTimestamp;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		public boolean hasSameContent(Entry other)
+		{
+			return other != null && size == other.size && Arrays.equals(hash, other.hash);
+		}
+
+		/**
+		 * An entry is racy when the file was modified in the same timestamp granularity window the
+		 * index was written. A later modification could keep the same size and timestamp, so those
+		 * entries are always checked by content.
+		 */
+		private boolean isRacy()
+		{
+			return indexTimestamp > 0 && lastModified >= indexTimestamp - 2000;
+		}
+	}
+}
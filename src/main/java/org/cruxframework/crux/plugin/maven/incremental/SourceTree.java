@@ -0,0 +1,432 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Snapshot of the files under a source folder, with their sizes and modification times. The folder is
+ * walked once, and each goal selects the files it needs with its own include and exclude patterns, using
+ * the same pattern syntax of the plexus <code>DirectoryScanner</code>. The content hash of each file is
+ * only computed when requested.
+ * <p>
+ * The folder is walked in parallel, one task per directory, reading the attributes of each entry with a
+ * single call. Version control metadata folders are not walked. Paths are built from the canonical path of
+ * the source folder, so only symbolic links need to be resolved. When selecting files, directories that can
+ * not hold any included file, or that are entirely excluded, are skipped.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class SourceTree
+{
+	private static final Set<String> IGNORED_DIRECTORIES = new HashSet<String>(Arrays.asList(".git", ".svn", ".hg", ".bzr", "CVS", 
+		"_darcs", "SCCS", "RCS"));
+
+	private final File root;
+	private final Directory rootDirectory;
+	private final List<FileEntry> files;
+
+	private SourceTree(File root, Directory rootDirectory)
+	{
+		this.root = root;
+		this.rootDirectory = rootDirectory;
+		this.files = new ArrayList<FileEntry>();
+		rootDirectory.collectFiles(this.files);
+	}
+
+	/**
+	 * Walk the given folder.
+	 *
+	 * @param root source folder
+	 * @return the snapshot, empty if the folder does not exist
+	 * @throws IOException
+	 */
+	public static SourceTree scan(File root) throws IOException
+	{
+		File canonicalRoot = root.getCanonicalFile();
+		Path rootPath = canonicalRoot.toPath();
+		Directory rootDirectory = new Directory("");
+		if (Files.isDirectory(rootPath))
+		{
+			ForkJoinPool pool = new ForkJoinPool(Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+			try
+			{
+				Set<Path> visited = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+				visited.add(rootPath);
+				pool.invoke(new WalkTask(rootPath, rootDirectory, visited));
+			}
+			catch (UncheckedIOException e)
+			{
+				throw e.getCause();
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		return new SourceTree(canonicalRoot, rootDirectory);
+	}
+
+	/**
+	 * Canonical path of the source folder.
+	 */
+	public File getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Retrieve all files of this snapshot.
+	 */
+	public List<FileEntry> getFiles()
+	{
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * Select the files matching any of the include patterns and none of the exclude patterns.
+	 *
+	 * @param includes include patterns, relative to the source folder
+	 * @param excludes exclude patterns, relative to the source folder. May be null
+	 * @return selected files
+	 */
+	public List<FileEntry> getFiles(String[] includes, String[] excludes)
+	{
+		String[] includePatterns = normalizePatterns(includes);
+		String[] excludePatterns = normalizePatterns(excludes);
+		List<String> excludedDirectories = new ArrayList<String>();
+		for (String pattern : excludePatterns)
+		{
+			if (pattern.endsWith(File.separator + "**"))
+			{
+				excludedDirectories.add(pattern);
+			}
+		}
+		List<FileEntry> result = new ArrayList<FileEntry>();
+		select(rootDirectory, includePatterns, excludePatterns, excludedDirectories, result);
+		return result;
+	}
+
+	/**
+	 * Check if a path matches any of the include patterns and none of the exclude patterns.
+	 *
+	 * @param relativePath path relative to the source folder, using the platform separator
+	 * @param includes include patterns
+	 * @param excludes exclude patterns. May be null
+	 */
+	public static boolean isSelected(String relativePath, String[] includes, String[] excludes)
+	{
+		return matches(normalizePatterns(includes), relativePath) && !matches(normalizePatterns(excludes), relativePath);
+	}
+
+	private static void select(Directory directory, String[] includes, String[] excludes, List<String> excludedDirectories, 
+								List<FileEntry> result)
+	{
+		for (FileEntry file : directory.files)
+		{
+			if (matches(includes, file.relativePath) && !matches(excludes, file.relativePath))
+			{
+				result.add(file);
+			}
+		}
+		for (Directory child : directory.directories)
+		{
+			if (couldHoldIncluded(includes, child.relativePath) && !isExcluded(excludedDirectories, child.relativePath))
+			{
+				select(child, includes, excludes, excludedDirectories, result);
+			}
+		}
+	}
+
+	private static boolean couldHoldIncluded(String[] includes, String directory)
+	{
+		for (String pattern : includes)
+		{
+			if (SelectorUtils.matchPatternStart(pattern, directory, true))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a pattern ending with <code>**</code> matches the directory, and so everything under it.
+	 */
+	private static boolean isExcluded(List<String> excludedDirectories, String directory)
+	{
+		for (String pattern : excludedDirectories)
+		{
+			if (SelectorUtils.matchPath(pattern, directory, true))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(String[] patterns, String path)
+	{
+		for (String pattern : patterns)
+		{
+			if (SelectorUtils.matchPath(pattern, path, true))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Use the platform separator on the patterns, and make patterns ending with a separator match
+	 * everything under the folder, like the <code>DirectoryScanner</code> does.
+	 */
+	static String[] normalizePatterns(String[] patterns)
+	{
+		if (patterns == null)
+		{
+			return new String[0];
+		}
+		String[] result = new String[patterns.length];
+		for (int i = 0; i < patterns.length; i++)
+		{
+			String pattern = patterns[i].trim().replace('/', File.separatorChar).replace('\\', File.separatorChar);
+			if (pattern.endsWith(File.separator))
+			{
+				pattern += "**";
+			}
+			result[i] = pattern;
+		}
+		return result;
+	}
+
+	private static class Directory
+	{
+		private final String relativePath;
+		private final List<FileEntry> files = new ArrayList<FileEntry>();
+		private final List<Directory> directories = new ArrayList<Directory>();
+
+		private Directory(String relativePath)
+		{
+			this.relativePath = relativePath;
+		}
+
+		private void collectFiles(List<FileEntry> result)
+		{
+			result.addAll(files);
+			for (Directory directory : directories)
+			{
+				directory.collectFiles(result);
+			}
+		}
+	}
+
+	/**
+	 * Read the entries of a directory, forking a new task for each subdirectory.
+	 */
+	private static class WalkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+		private final Directory directory;
+		private final Set<Path> visited;
+
+		private WalkTask(Path path, Directory directory, Set<Path> visited)
+		{
+			this.path = path;
+			this.directory = directory;
+			this.visited = visited;
+		}
+
+		@Override
+		protected void compute()
+		{
+			List<WalkTask> subtasks = new ArrayList<WalkTask>();
+			try
+			{
+				DirectoryStream<Path> stream = Files.newDirectoryStream(path);
+				try
+				{
+					String prefix = (directory.relativePath.length() == 0) ? "" : directory.relativePath + File.separator;
+					for (Path child : stream)
+					{
+						String name = child.getFileName().toString();
+						BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						if (attributes.isSymbolicLink())
+						{
+							// the only entries that need to be resolved, to keep all paths canonical
+							try
+							{
+								child = child.toRealPath();
+								attributes = Files.readAttributes(child, BasicFileAttributes.class);
+							}
+							catch (IOException e)
+							{
+								// broken link
+								continue;
+							}
+						}
+						if (attributes.isDirectory())
+						{
+							if (!IGNORED_DIRECTORIES.contains(name) && visited.add(child))
+							{
+								Directory childDirectory = new Directory(prefix + name);
+								directory.directories.add(childDirectory);
+								subtasks.add(new WalkTask(child, childDirectory, visited));
+							}
+						}
+						else if (attributes.isRegularFile())
+						{
+							directory.files.add(new FileEntry(child.toFile(), prefix + name, attributes.size(), 
+																attributes.lastModifiedTime().toMillis()));
+						}
+					}
+				}
+				finally
+				{
+					stream.close();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	/**
+	 * Carries I/O errors out of the walk tasks.
+	 */
+	private static class UncheckedIOException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		private UncheckedIOException(IOException cause)
+		{
+			super(cause);
+		}
+
+		@Override
+		public synchronized IOException getCause()
+		{
+			return (IOException) super.getCause();
+		}
+	}
+
+	public static class FileEntry
+	{
+		private final File file;
+		private final String relativePath;
+		private final long size;
+		private final long lastModified;
+		private byte[] hash;
+
+		private FileEntry(File file, String relativePath, long size, long lastModified)
+		{
+			this.file = file;
+			this.relativePath = relativePath;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Read the attributes of a single file, without walking its source folder.
+		 *
+		 * @param file the file, under the canonical path of its source folder
+		 * @param relativePath path relative to the source folder
+		 * @return the entry, or null if the file does not exist
+		 * @throws IOException
+		 */
+		public static FileEntry read(File file, String relativePath) throws IOException
+		{
+			BasicFileAttributes attributes;
+			try
+			{
+				attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			}
+			catch (NoSuchFileException e)
+			{
+				return null;
+			}
+			if (!attributes.isRegularFile())
+			{
+				return null;
+			}
+			return new FileEntry(file, relativePath, attributes.size(), attributes.lastModifiedTime().toMillis());
+		}
+
+		/**
+		 * The file, under the canonical path of the source folder.
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Path relative to the source folder, using the platform separator.
+		 */
+		public String getRelativePath()
+		{
+			return relativePath;
+		}
+
+		public long getSize()
+		{
+			return size;
+		}
+
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+
+		/**
+		 * Content digest of the file, computed on the first call.
+		 *
+		 * @see SourceIndex#digest(File)
+		 */
+		public synchronized byte[] getHash() throws IOException
+		{
+			if (hash == null)
+			{
+				hash = SourceIndex.digest(file);
+			}
+			return hash;
+		}
+	}
+}
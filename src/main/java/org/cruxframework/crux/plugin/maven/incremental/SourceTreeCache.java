@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.maven.execution.MavenSession;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.logging.AbstractLogEnabled;
+
+/**
+ * Keeps the {@link SourceTree} snapshots of the source folders for the whole build session, so the
+ * goals that scan the same folders (annotation processing, pages and schemas generation) walk each
+ * folder only once. The snapshots are dropped when a new session starts.
+ * <p>
+ * Folders written during the build must be walked again after each modification, through
+ * {@link #invalidate(File)}, or read with {@link SourceTree#scan(File)} directly.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+@Component(role = SourceTreeCache.class)
+public class SourceTreeCache extends AbstractLogEnabled
+{
+	private WeakReference<MavenSession> currentSession = new WeakReference<MavenSession>(null);
+	private final Map<File, SourceTree> trees = new HashMap<File, SourceTree>();
+
+	/**
+	 * Retrieve the snapshot of the given folder, walking it if this is the first request on the session.
+	 *
+	 * @param session current build session
+	 * @param root source folder
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	public SourceTree getTree(MavenSession session, File root) throws IOException
+	{
+		File key = root.getAbsoluteFile();
+		synchronized (this)
+		{
+			if (currentSession.get() != session)
+			{
+				trees.clear();
+				currentSession = new WeakReference<MavenSession>(session);
+			}
+			SourceTree tree = trees.get(key);
+			if (tree != null)
+			{
+				return tree;
+			}
+		}
+		// walk outside the lock, so modules built in parallel do not wait for each other
+		SourceTree tree = SourceTree.scan(root);
+		if (getLogger().isDebugEnabled())
+		{
+			getLogger().debug("Source folder snapshot taken: " + tree.getRoot() + " (" + tree.getFiles().size() + " files)");
+		}
+		synchronized (this)
+		{
+			if (currentSession.get() == session)
+			{
+				trees.put(key, tree);
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Discard the snapshot of the given folder, after it was modified.
+	 */
+	public synchronized void invalidate(File root)
+	{
+		trees.remove(root.getAbsoluteFile());
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helper methods to write incremental state files. State files are always written to a temporary
+ * file that replaces the target only when completely written, atomically when the file system allows.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+class StateFiles
+{
+	private StateFiles()
+	{
+	}
+
+	static File getTempFile(File file)
+	{
+		File parent = file.getParentFile();
+		if (parent != null && !parent.exists())
+		{
+			parent.mkdirs();
+		}
+		return new File(parent, file.getName() + ".tmp");
+	}
+
+	static void replace(File tempFile, File file) throws IOException
+	{
+		try
+		{
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			// fall back to delete and rename
+		}
+		if (file.exists() && !file.delete())
+		{
+			throw new IOException("Can not replace state file " + file.getAbsolutePath());
+		}
+		if (!tempFile.renameTo(file))
+		{
+			throw new IOException("Can not rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+}
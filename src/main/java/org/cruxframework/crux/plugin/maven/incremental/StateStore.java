@@ -0,0 +1,438 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.incremental;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent key-value store for the incremental state of the goals. Each goal keeps its values on its own
+ * namespace, loaded only when the goal first accesses it.
+ * <p>
+ * A namespace is stored as a snapshot file (<code>name.db</code>) and a journal (<code>name.journal</code>).
+ * Changes are kept in memory until {@link Namespace#commit()}, which appends them to the journal as
+ * checksummed records and syncs it to disk. Loading a namespace reads the snapshot and replays the journal,
+ * discarding any incomplete record left by an interrupted build, so only committed changes are ever seen.
+ * When the journal grows larger than the snapshot, both are compacted into a new snapshot, which replaces
+ * the previous one only when completely written.
+ * <p>
+ * Goals must only commit the state of an output after the output is completely written. A build interrupted
+ * before the commit just runs that work again.
+ *
+ * @author Thiago da Rosa de Bustamante
+ *
+ */
+public class StateStore
+{
+	private static final int MAGIC = 0x43525853; // "CRXS"
+	private static final int VERSION = 1;
+	private static final int MIN_COMPACT_SIZE = 64 * 1024;
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final Pattern NAMESPACE_NAME = Pattern.compile("[a-z0-9\\-]+");
+
+	private final File directory;
+	private final Map<String, Namespace> namespaces = new HashMap<String, Namespace>();
+
+	/**
+	 * @param directory folder where the namespaces are stored
+	 */
+	public StateStore(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Retrieve a namespace, reading it on the first request.
+	 *
+	 * @param name namespace name. Only lower case letters, digits and '-' are allowed
+	 * @return the namespace
+	 * @throws IOException
+	 */
+	public synchronized Namespace getNamespace(String name) throws IOException
+	{
+		if (!NAMESPACE_NAME.matcher(name).matches())
+		{
+			throw new IllegalArgumentException("Invalid namespace name: " + name);
+		}
+		Namespace namespace = namespaces.get(name);
+		if (namespace == null)
+		{
+			namespace = new Namespace(new File(directory, name + ".db"), new File(directory, name + ".journal"));
+			namespace.load();
+			namespaces.put(name, namespace);
+		}
+		return namespace;
+	}
+
+	/**
+	 * The values of a goal.
+	 */
+	public static class Namespace
+	{
+		private final File snapshotFile;
+		private final File journalFile;
+		private final Map<String, byte[]> values = new HashMap<String, byte[]>();
+		private final Map<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+		private long snapshotSize;
+		private long journalSize;
+
+		private Namespace(File snapshotFile, File journalFile)
+		{
+			this.snapshotFile = snapshotFile;
+			this.journalFile = journalFile;
+		}
+
+		public synchronized byte[] get(String key)
+		{
+			return values.get(key);
+		}
+
+		public synchronized Set<String> keys()
+		{
+			return Collections.unmodifiableSet(new HashSet<String>(values.keySet()));
+		}
+
+		/**
+		 * Set a value. It is only persisted by the next {@link #commit()}.
+		 */
+		public synchronized void put(String key, byte[] value)
+		{
+			if (!Arrays.equals(values.get(key), value))
+			{
+				values.put(key, value);
+				pending.put(key, value);
+			}
+		}
+
+		/**
+		 * Remove a value. The removal is only persisted by the next {@link #commit()}.
+		 */
+		public synchronized void remove(String key)
+		{
+			if (values.remove(key) != null)
+			{
+				pending.put(key, null);
+			}
+		}
+
+		/**
+		 * Retrieve a value stored by {@link #putLongs(String, long...)}.
+		 *
+		 * @return the numbers or null if the key is not found
+		 */
+		public long[] getLongs(String key)
+		{
+			byte[] value = get(key);
+			if (value == null)
+			{
+				return null;
+			}
+			try
+			{
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+				long[] result = new long[readVarInt(in)];
+				for (int i = 0; i < result.length; i++)
+				{
+					long encoded = readVarLong(in);
+					result[i] = (encoded >>> 1) ^ -(encoded & 1);
+				}
+				return result;
+			}
+			catch (IOException e)
+			{
+				// value stored with another encoding
+				return null;
+			}
+		}
+
+		/**
+		 * Store a sequence of numbers (like sizes and timestamps of files), using a variable length encoding.
+		 */
+		public void putLongs(String key, long... numbers)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + numbers.length * 5);
+			DataOutputStream out = new DataOutputStream(bytes);
+			try
+			{
+				writeVarLong(out, numbers.length);
+				for (long number : numbers)
+				{
+					writeVarLong(out, (number << 1) ^ (number >> 63));
+				}
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			put(key, bytes.toByteArray());
+		}
+
+		/**
+		 * Persist the changes made since the previous commit.
+		 *
+		 * @throws IOException
+		 */
+		public synchronized void commit() throws IOException
+		{
+			if (pending.isEmpty())
+			{
+				return;
+			}
+			// the changes always reach the journal before any compaction, see compact()
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (journalSize == 0)
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			}
+			for (Map.Entry<String, byte[]> change : pending.entrySet())
+			{
+				writeRecord(out, change.getKey(), change.getValue());
+			}
+			out.flush();
+
+			journalFile.getParentFile().mkdirs();
+			FileOutputStream journal = new FileOutputStream(journalFile, true);
+			try
+			{
+				journal.write(bytes.toByteArray());
+				journal.getFD().sync();
+			}
+			finally
+			{
+				journal.close();
+			}
+			journalSize += bytes.size();
+			pending.clear();
+			if (journalSize > Math.max(MIN_COMPACT_SIZE, snapshotSize))
+			{
+				compact();
+			}
+		}
+
+		private void load() throws IOException
+		{
+			if (snapshotFile.exists())
+			{
+				byte[] content = Files.readAllBytes(snapshotFile.toPath());
+				snapshotSize = content.length;
+				try
+				{
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+					if (in.readInt() == MAGIC && in.readInt() == VERSION)
+					{
+						int count = readVarInt(in);
+						for (int i = 0; i < count; i++)
+						{
+							String key = in.readUTF();
+							byte[] value = new byte[readVarInt(in)];
+							in.readFully(value);
+							values.put(key, value);
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					// snapshots are replaced only when complete, so this one was not written by us
+					values.clear();
+				}
+			}
+			if (journalFile.exists())
+			{
+				replayJournal();
+			}
+		}
+
+		private void replayJournal() throws IOException
+		{
+			byte[] content = Files.readAllBytes(journalFile.toPath());
+			ByteArrayInputStream bytes = new ByteArrayInputStream(content);
+			DataInputStream in = new DataInputStream(bytes);
+			int validLength = 0;
+			try
+			{
+				if (in.readInt() == MAGIC && in.readInt() == VERSION)
+				{
+					validLength = content.length - bytes.available();
+					CRC32 crc = new CRC32();
+					while (bytes.available() > 0)
+					{
+						int start = content.length - bytes.available();
+						byte op = in.readByte();
+						String key = in.readUTF();
+						byte[] value = null;
+						if (op == OP_PUT)
+						{
+							value = new byte[readVarInt(in)];
+							in.readFully(value);
+						}
+						else if (op != OP_REMOVE)
+						{
+							break;
+						}
+						int end = content.length - bytes.available();
+						crc.reset();
+						crc.update(content, start, end - start);
+						if (in.readInt() != (int) crc.getValue())
+						{
+							break;
+						}
+						if (value == null)
+						{
+							values.remove(key);
+						}
+						else
+						{
+							values.put(key, value);
+						}
+						validLength = content.length - bytes.available();
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				// record not completely written
+			}
+			if (validLength == 0)
+			{
+				journalFile.delete();
+			}
+			else if (validLength < content.length)
+			{
+				// drop the incomplete tail, so new records are not appended after it
+				RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+				try
+				{
+					journal.setLength(validLength);
+				}
+				finally
+				{
+					journal.close();
+				}
+			}
+			journalSize = validLength;
+		}
+
+		private void compact() throws IOException
+		{
+			File tempFile = StateFiles.getTempFile(snapshotFile);
+			FileOutputStream file = new FileOutputStream(tempFile);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			try
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeVarLong(out, values.size());
+				for (Map.Entry<String, byte[]> entry : values.entrySet())
+				{
+					out.writeUTF(entry.getKey());
+					writeVarLong(out, entry.getValue().length);
+					out.write(entry.getValue());
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			finally
+			{
+				out.close();
+			}
+			StateFiles.replace(tempFile, snapshotFile);
+			// the journal holds every change made since the previous snapshot, so the last record of each key has
+			// the value written to the new snapshot. Replaying it over the new snapshot does not change it, and a
+			// crash here is harmless
+			if (journalFile.exists() && !journalFile.delete())
+			{
+				throw new IOException("Can not remove state journal " + journalFile.getAbsolutePath());
+			}
+			snapshotSize = snapshotFile.length();
+			journalSize = 0;
+		}
+
+		private static void writeRecord(DataOutputStream out, String key, byte[] value) throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bytes);
+			record.writeByte((value == null) ? OP_REMOVE : OP_PUT);
+			record.writeUTF(key);
+			if (value != null)
+			{
+				writeVarLong(record, value.length);
+				record.write(value);
+			}
+			record.flush();
+			CRC32 crc = new CRC32();
+			crc.update(bytes.toByteArray());
+			bytes.writeTo(out);
+			out.writeInt((int) crc.getValue());
+		}
+	}
+
+	private static void writeVarLong(DataOutput out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException
+	{
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = in.readByte();
+			result |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return result;
+			}
+		}
+		throw new IOException("Malformed variable length number");
+	}
+
+	private static int readVarInt(DataInput in) throws IOException
+	{
+		long value = readVarLong(in);
+		if (value < 0 || value > Integer.MAX_VALUE)
+		{
+			throw new IOException("Invalid length: " + value);
+		}
+		return (int) value;
+	}
+}
@@ -17,39 +17,73 @@ package org.cruxframework.crux.plugin.maven.mojo;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.processing.Processor;
 
 import javax.lang.model.SourceVersion;
-import javax.tools.Diagnostic;
-import javax.tools.Diagnostic.Kind;
 import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
 import org.cruxframework.crux.core.annotation.processor.CruxAnnotationProcessor;
-import org.cruxframework.crux.core.annotation.processor.RestServiceProcessor;
-import org.cruxframework.crux.tools.annotation.processor.LibraryProcessor;
+import org.cruxframework.crux.plugin.maven.apt.AnnotationPrefilter;
+import org.cruxframework.crux.plugin.maven.apt.AptMode;
+import org.cruxframework.crux.plugin.maven.apt.AptMetrics;
+import org.cruxframework.crux.plugin.maven.apt.ClasspathReducer;
+import org.cruxframework.crux.plugin.maven.apt.CompilerCache;
+import org.cruxframework.crux.plugin.maven.apt.CompilerCache.FileManagerLease;
+import org.cruxframework.crux.plugin.maven.apt.DiagnosticBuffer;
+import org.cruxframework.crux.plugin.maven.apt.DiagnosticsCollector;
+import org.cruxframework.crux.plugin.maven.apt.ProcessingTracker;
+import org.cruxframework.crux.plugin.maven.apt.ProcessorDescriptor;
+import org.cruxframework.crux.plugin.maven.apt.ShardOutputMerger;
+import org.cruxframework.crux.plugin.maven.apt.SourceShards;
+import org.cruxframework.crux.plugin.maven.apt.TrackingProcessor;
+import org.cruxframework.crux.plugin.maven.apt.WriteAvoidingFileManager;
+import org.cruxframework.crux.plugin.maven.incremental.ClasspathState;
+import org.cruxframework.crux.plugin.maven.incremental.DependencyGraph;
+import org.cruxframework.crux.plugin.maven.incremental.SourceIndex;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTree;
 
 /**
  * @author Thiago da Rosa de Bustamante
@@ -61,12 +95,84 @@ public class APTMojo extends AbstractToolMojo
 {
 	private static final String JAVA_FILES = "**/*.java";
 	
+	@Component(role = CompilerCache.class)
+	private CompilerCache compilerCache;
+
+	@Component(role = ClasspathReducer.class)
+	private ClasspathReducer classpathReducer;
+
 	@Parameter
 	private String sourceVersion;
 
 	@Parameter(property = "apt.incremental", defaultValue="true")
 	private boolean incremental;
 
+	/**
+	 * Number of threads used to run the annotation processors over all project sources. When greater than one, 
+	 * sources are split by package and each group is processed concurrently. Incremental runs always use a 
+	 * single thread.
+	 */
+	@Parameter(property = "apt.threads", defaultValue="1")
+	private int threads;
+
+	/**
+	 * If true, only source files that mention an annotation handled by the processors are handed to the compiler
+	 * as compilation units. Types that only inherit a processed annotation from a supertype are not selected.
+	 */
+	@Parameter(property = "apt.prefilter", defaultValue="false")
+	private boolean prefilter;
+
+	/**
+	 * How the annotation processors run. <code>PROCESS_ONLY</code> only runs the processors, leaving the compilation 
+	 * to the compiler plugin. <code>FUSED</code> compiles the project sources and the generated sources together 
+	 * with the processing, so each source is parsed once per build. The compiler plugin then finds all classes up 
+	 * to date (it can also be skipped with <code>maven.main.skip</code>). <code>GENERATED</code> compiles only the 
+	 * generated sources after the processing, with the project sources on the source path, so the compiler plugin 
+	 * does not parse them again. The annotation 
+	 * pre-filter does not apply to the <code>FUSED</code> mode, and the parallel processing only applies to the 
+	 * <code>PROCESS_ONLY</code> mode. The compiling modes compile for the Java version of the compiler plugin 
+	 * (<code>maven.compiler.release</code>, or <code>maven.compiler.source</code> and 
+	 * <code>maven.compiler.target</code>), that must be informed.
+	 * <p>
+	 * The compiling modes also apply the <code>debug</code>, <code>debuglevel</code>, <code>parameters</code>, 
+	 * <code>compilerArgs</code>, <code>compilerArgument</code> and <code>compilerArguments</code> settings of the 
+	 * compiler plugin. On the <code>FUSED</code> mode, the processors of the compile classpath (or the ones of the 
+	 * <code>annotationProcessors</code> setting) run with the Crux processors, unless <code>proc</code> is 
+	 * <code>none</code>. The <code>annotationProcessorPaths</code> setting and <code>proc</code> set to 
+	 * <code>only</code> are not supported by the <code>FUSED</code> mode. Settings that replace the compiler 
+	 * (<code>fork</code>, <code>executable</code>, <code>compilerId</code>) are ignored.
+	 */
+	@Parameter(property = "apt.mode", defaultValue="PROCESS_ONLY")
+	private AptMode mode;
+
+	/**
+	 * If true, the annotation processors run with only the classpath entries reachable from the packages imported 
+	 * by the processed sources. The selection is reused while the project dependencies do not change. If the 
+	 * processing fails with that classpath, it runs again with the full compile classpath.
+	 */
+	@Parameter(property = "apt.minimalClasspath", defaultValue="false")
+	private boolean minimalClasspath;
+
+	/**
+	 * If true, the time and memory spent on each phase of the annotation processing, and on each round of each 
+	 * processor, are written to <code>target/crux-plugin/metrics/apt.json</code>.
+	 */
+	@Parameter(property = "apt.metrics", defaultValue="false")
+	private boolean writeMetrics;
+
+	/**
+	 * Maximum number of annotation processing warnings and notes logged. All diagnostics are written to 
+	 * <code>target/crux-plugin/apt-diagnostics.log</code>, and a summary is logged at the end. Errors are always logged.
+	 */
+	@Parameter(property = "apt.diagnosticsLogLimit", defaultValue="100")
+	private int diagnosticsLogLimit;
+
+	private AptMetrics metrics = new AptMetrics();
+
+	private DiagnosticsCollector diagnosticsCollector;
+
+	private List<ProcessorDescriptor> processorDescriptors;
+
 	@Override
 	public void execute() throws MojoExecutionException, MojoFailureException
 	{
@@ -76,16 +182,34 @@ public class APTMojo extends AbstractToolMojo
 			return;
 		}
 		long before = System.currentTimeMillis();
+		metrics = new AptMetrics();
 
 		setupGenerateDirectory();
 
-		Set<String> newSourceFiles = process();
-		if (newSourceFiles != null) // changed
+		SourceIndex index;
+		try
+		{
+			index = process();
+		}
+		finally
 		{
-			updateReportFile(newSourceFiles);
+			closeDiagnosticsCollector();
+			releaseProjectClassLoaders();
+		}
+		if (index != null && index.isChanged())
+		{
+			AptMetrics.Measure measure = metrics.start("state");
+			updateIndexFile(index);
+			measure.stop();
 		}
 		
+		recordChangeDetection();
+
 		long after = System.currentTimeMillis();
+		if (writeMetrics)
+		{
+			updateMetricsFile();
+		}
 
 		if (getLog().isDebugEnabled())
 		{
@@ -93,6 +217,24 @@ public class APTMojo extends AbstractToolMojo
 		}
 	}
 
+	/**
+	 * In the <code>GENERATED</code> mode, the generated sources are already compiled, so their folder is not 
+	 * added as a compile source root.
+	 */
+	@Override
+	protected File setupGenerateDirectory()
+	{
+		if (mode != AptMode.GENERATED)
+		{
+			return super.setupGenerateDirectory();
+		}
+		if (!getGeneratedSourcesDir().exists())
+		{
+			getGeneratedSourcesDir().mkdirs();
+		}
+		return getGeneratedSourcesDir();
+	}
+
 	/**
 	 * Retrieve the compilation source version
 	 * 
@@ -111,82 +253,223 @@ public class APTMojo extends AbstractToolMojo
 		return sourceVersion;
 	}
 
-	public Set<String> process() throws MojoExecutionException
+	/**
+	 * Run the annotation processors over the modified source files and the ones that depend on them.
+	 * 
+	 * @return the index representing the current source files state.
+	 * @throws MojoExecutionException
+	 */
+	public SourceIndex process() throws MojoExecutionException
     {
-		boolean hasChanges = false;
+		SourceIndex previousIndex = getPreviousIndex();
+		DependencyGraph previousGraph = (previousIndex == null) ? new DependencyGraph() : getPreviousGraph();
+		ClasspathState previousClasspath = getPreviousClasspathState();
 
 		Set<File> modifiedSources = new HashSet<File>();
-		Set<String> allSources = new HashSet<String>();
+		AptMetrics.Measure scan = metrics.start("scan");
+		SourceIndex index = scanModifiedSourceFiles(previousIndex, modifiedSources);
+		Set<String> deletedSources = (previousIndex == null) ? Collections.<String>emptySet() : previousIndex.getDeletedPaths(index);
+		scan.stop();
+		metrics.count("sources", index.size());
+		metrics.count("modified", modifiedSources.size());
+		metrics.count("deleted", deletedSources.size());
 
-		if (scanModifiedSourceFiles(modifiedSources, allSources))
+		AptMetrics.Measure classpathScan = metrics.start("classpath-scan");
+		Set<String> changedPackages = new HashSet<String>();
+		ClasspathState classpathState = scanClasspath(previousClasspath, changedPackages);
+		classpathScan.stop();
+		boolean processorsChanged = previousClasspath == null 
+			|| !previousClasspath.getProcessorsFingerprint().equals(classpathState.getProcessorsFingerprint());
+		if (getLog().isDebugEnabled() && !changedPackages.isEmpty())
 		{
-			hasChanges = true;
+			getLog().debug("Classpath changes found on packages: " + changedPackages);
 		}
 
-		List<String> previousSourceFiles = getPreviousSourceFiles();
+		boolean changed = !modifiedSources.isEmpty() || !deletedSources.isEmpty() || !changedPackages.isEmpty();
+		// the graph only tracks the dependencies seen by the processors, so plain classes depending on a changed 
+		// class would not be compiled again
+		boolean fusedChange = (mode == AptMode.FUSED) && changed;
+		if (fusedChange && incremental && getLog().isDebugEnabled())
+		{
+			getLog().debug("Sources changed on fused mode. All source files will be compiled.");
+		}
 
-		if (!incremental || hasDeletedResources(allSources, previousSourceFiles))
+		DependencyGraph graph;
+		if (!incremental || previousGraph == null || processorsChanged || changedPackages.contains(ClasspathState.ALL_PACKAGES) || fusedChange)
 		{
-			runAPT();
+			metrics.setMode("full");
+			graph = runFullAPT();
+			if (graph != null && previousGraph != null)
+			{
+				Set<String> previousOutputs = getOutputs(previousGraph, previousGraph.getSources());
+				previousOutputs.removeAll(getOutputs(graph, graph.getSources()));
+				deleteOutputs(previousOutputs);
+			}
 		}
-		else if (hasChanges)
+		else if (changed)
 		{
-			runAPT(modifiedSources, true);
+			metrics.setMode("incremental");
+			graph = runIncrementalAPT(index, previousGraph, modifiedSources, deletedSources, changedPackages);
 		}
 		else
 		{
-			return null;
+			graph = null;
+		}
+		
+		AptMetrics.Measure measure = metrics.start("state");
+		if (graph != null)
+		{
+			updateGraphFile(graph);
+			getBuildContext().refresh(getGeneratedSourcesDir());
+		}
+		if (classpathState.isChanged())
+		{
+			updateClasspathStateFile(classpathState);
 		}
-		return allSources;
+		measure.stop();
+		return index;
     }
 	
 	public void runAPT() throws MojoExecutionException
 	{
-		Set<File> files;
-		try
-		{
-			files = getAllFiles(JAVA_FILES, null, false);
-		}
-		catch (IOException e)
+		runFullAPT();
+	}
+	
+	/**
+	 * Run the annotation processors over the given files.
+	 * 
+	 * @param files source files
+	 * @param incremental if true, processors merge their output with the previously generated one
+	 * @return the information collected from the processors or null if nothing was processed
+	 * @throws MojoExecutionException
+	 */
+	public ProcessingTracker runAPT(Set<File> files, boolean incremental) throws MojoExecutionException
+	{
+		if (files == null || files.isEmpty())
 		{
-			throw new MojoExecutionException("Error retrieving the source files list.", e);
+			getLog().warn("no source file(s) detected! Processor task will be skipped");
+			return null;
 		}
-		runAPT(files, false);
+
+		return runAPT(files, incremental, getProcessorDescriptors(), null);
 	}
-	
-	public void runAPT(Set<File> files, boolean incremental) throws MojoExecutionException
+
+	/**
+	 * Run the given annotation processors over the given files.
+	 * 
+	 * @param graph dependencies graph of the previous run, if any
+	 */
+	private ProcessingTracker runAPT(Set<File> files, boolean incremental, List<ProcessorDescriptor> processors, 
+									DependencyGraph graph) throws MojoExecutionException
+	{
+		AptMetrics.Measure scan = metrics.start("scan");
+		Set<File> compilationUnits = selectCompilationUnits(files, processors, graph);
+		scan.stop();
+		return runAPT(compilationUnits, incremental, processors, getProcessingClasspath(files, processors, false), 
+			getCompilationSourcePath(), getGeneratedSourcesDir(), getOutputDirectory());
+	}
+
+	/**
+	 * Run the annotation processors with the given minimal classpath, if any. If the processing fails, run it 
+	 * again with the full compile classpath.
+	 */
+	private ProcessingTracker runAPT(Set<File> files, boolean incremental, List<ProcessorDescriptor> processors, 
+									Collection<File> minimalClasspath, Collection<File> sourcePath, File sourceOutput, File classOutput) throws MojoExecutionException
 	{
-		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (files.isEmpty())
+		{
+			getLog().info("No source file mentions the annotations of the processors. Annotation processing skipped.");
+			try
+			{
+				return new ProcessingTracker(getSourceRoots());
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException("Error resolving the source folders.", e);
+			}
+		}
 
-		if (compiler == null)
+		FileManagerLease lease = compilerCache.acquire(getSession(), getSourceCharset());
+		if (lease == null)
 		{
 			getLog().error("JVM is not suitable for processing annotation! ToolProvider.getSystemJavaCompiler() is null.");
-			return;
+			return null;
 		}
+		
+		try
+		{
+			JavaCompiler compiler = compilerCache.getCompiler();
+			ProcessingTracker tracker;
+			if (minimalClasspath != null)
+			{
+				DiagnosticBuffer diagnostics = new DiagnosticBuffer();
+				try
+				{
+					tracker = runAPT(compiler, lease, files, incremental, processors, minimalClasspath, sourcePath, sourceOutput, classOutput, diagnostics);
+				}
+				catch (RuntimeException e)
+				{
+					getLog().debug("Annotation processors failed with the minimal classpath.", e);
+					tracker = null;
+				}
+				if (tracker != null)
+				{
+					diagnostics.replay(getDiagnosticsCollector());
+					return tracker;
+				}
+				getLog().info("Annotation processing failed with the minimal classpath. Running it again with the full compile classpath.");
+			}
 
-		Charset charset = getCharset();
-
-		final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null,
-		    (charset == null) ? Charset.defaultCharset() : charset);
+			AptMetrics.Measure classpathMeasure = metrics.start("classpath");
+			Collection<File> classpath = getClasspath(Artifact.SCOPE_COMPILE, false);
+			classpathMeasure.stop();
+			tracker = runAPT(compiler, lease, files, incremental, processors, classpath, sourcePath, sourceOutput, classOutput, getDiagnosticsCollector());
+			if (tracker == null)
+			{
+				throw new MojoExecutionException("error during compilation");
+			}
+			return tracker;
+		}
+		finally
+		{
+			compilerCache.release(lease);
+		}
+	}
 
-		final List<JavaFileObject> allSources = new java.util.ArrayList<JavaFileObject>();
-		if (files != null && !files.isEmpty())
+	/**
+	 * Run the annotation processors.
+	 * @return the information collected from the processors or null if the compilation failed
+	 */
+	private ProcessingTracker runAPT(JavaCompiler compiler, FileManagerLease lease, Set<File> files, boolean incremental, 
+									List<ProcessorDescriptor> processors, Collection<File> classpath, Collection<File> sourcePath, File sourceOutput, File classOutput, 
+									DiagnosticListener<JavaFileObject> dl) throws MojoExecutionException
+	{
+		AptMetrics.Measure setup = metrics.start("setup");
+		final StandardJavaFileManager fileManager = lease.getFileManager();
+		try
 		{
-			for (JavaFileObject f : fileManager.getJavaFileObjectsFromFiles(files))
+			if (!classOutput.exists())
+			{
+				classOutput.mkdirs();
+			}
+			if (!sourceOutput.exists())
 			{
-				allSources.add(f);
+				sourceOutput.mkdirs();
 			}
+			lease.setLocations(classpath, sourcePath, sourceOutput, classOutput);
 		}
-
-		if (allSources.isEmpty())
+		catch (IOException e)
 		{
-			getLog().warn("no source file(s) detected! Processor task will be skipped");
-			return;
+			throw new MojoExecutionException("Error configuring the compiler file manager.", e);
 		}
 
-		final DiagnosticListener<JavaFileObject> dl = getDiagnosticListener();
+		final List<JavaFileObject> allSources = new java.util.ArrayList<JavaFileObject>();
+		for (JavaFileObject f : fileManager.getJavaFileObjectsFromFiles(files))
+		{
+			allSources.add(f);
+		}
 
-		List<String> options = getOptions(incremental);
+		List<String> options = getOptions(compiler, incremental);
 
 		if (getLog().isDebugEnabled())
 		{
@@ -201,173 +484,817 @@ public class APTMojo extends AbstractToolMojo
 			}
 		}
 
-		CompilationTask task = compiler.getTask(new PrintWriter(System.out), fileManager, dl, options, null, allSources);
-		
-		task.setProcessors(getProcessors());
-
-		// Perform the compilation task.
-		if (!task.call())
+		ProcessingTracker tracker;
+		try
 		{
-			throw new MojoExecutionException("error during compilation");
+			tracker = new ProcessingTracker(getSourceRoots());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error resolving the source folders.", e);
 		}
-	}
 
-	private ArrayList<CruxAnnotationProcessor> getProcessors()
-	{
-		ArrayList<CruxAnnotationProcessor> processors = new ArrayList<CruxAnnotationProcessor>();
-		processors.add(new RestServiceProcessor());
-		processors.add(new LibraryProcessor());
-		return processors;
-	}
+		WriteAvoidingFileManager outputFileManager = new WriteAvoidingFileManager(fileManager, getSourceCharset(), tracker, mode == AptMode.GENERATED);
+		CompilationTask task = compiler.getTask(new PrintWriter(System.out), outputFileManager, dl, options, null, allSources);
+		List<Processor> trackingProcessors = new ArrayList<Processor>();
+		List<Processor> allProcessors = getProcessors(processors);
+		if (mode == AptMode.FUSED)
+		{
+			allProcessors.addAll(getProjectProcessors());
+		}
+		for (Processor processor : allProcessors)
+		{
+			trackingProcessors.add(new TrackingProcessor(processor, tracker, metrics, getDiagnosticsCollector()));
+		}
+		task.setProcessors(trackingProcessors);
+		setup.stop();
+		metrics.count("compilation-units", allSources.size());
+		metrics.count("classpath-entries", classpath.size());
 
-	protected List<String> getPreviousSourceFiles() throws MojoExecutionException
-	{
-		BufferedReader reader = null;
+		// Perform the compilation task.
+		AptMetrics.Measure compile = metrics.start("compile");
+		metrics.compilationStarted();
 		try
 		{
-			File checkFile = getCheckFile();
-			
-			if (!checkFile.exists())
+			if (!task.call())
 			{
 				return null;
 			}
-			
-			List<String> sourceFiles = new ArrayList<String>();
-			reader = new BufferedReader(new FileReader(checkFile));
-			String line;
-			while ((line = reader.readLine()) != null)
-			{
-				String sourceFile = line.trim();
-				if (!sourceFile.startsWith("#"))
-				{
-					sourceFiles.add(sourceFile);
-				}
-			}
-			
-			return sourceFiles;
 		}
-		catch (Exception e)
+		finally
 		{
-			throw new MojoExecutionException("Error checking source files modifications", e);
+			metrics.compilationFinished();
+			compile.stop();
+			metrics.count("written-outputs", outputFileManager.getWrittenFiles());
+			metrics.count("unchanged-outputs", outputFileManager.getUnchangedFiles());
 		}
-		finally
+		if (mode == AptMode.GENERATED && !compileGeneratedSources(compiler, lease, outputFileManager.getGeneratedSources(), 
+																classpath, sourceOutput, classOutput, dl, tracker))
 		{
-			if (reader != null)
-			{
-				try
-                {
-	                reader.close();
-                }
-                catch (IOException e)
-                {
-                	//IGNORE
-                }
-			}
+			return null;
 		}
+		return tracker;
 	}
-	
-	protected boolean hasDeletedResources(Set<String> allSources, List<String> previousSourceFiles) throws MojoExecutionException
+
+	/**
+	 * Compile the sources generated by the processors, on the <code>GENERATED</code> mode. The project sources are
+	 * not compilation units: they are only found through the source path, so the compiler reads the types the 
+	 * generated sources refer to and writes no class for them.
+	 * 
+	 * @return false if the compilation failed
+	 */
+	private boolean compileGeneratedSources(JavaCompiler compiler, FileManagerLease lease, Collection<File> generatedSources, 
+											Collection<File> classpath, File sourceOutput, File classOutput, 
+											DiagnosticListener<JavaFileObject> dl, ProcessingTracker tracker) throws MojoExecutionException
 	{
-		if (previousSourceFiles != null)
+		if (generatedSources.isEmpty())
 		{
-			for (String source : previousSourceFiles)
-			{
-				if (!allSources.contains(source))
-				{
-					return true;
-				}
-			}
+			return true;
+		}
+		List<File> sourcePath = new ArrayList<File>(getSourceRoots());
+		sourcePath.add(sourceOutput);
+		try
+		{
+			lease.setLocations(classpath, sourcePath, sourceOutput, classOutput);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error configuring the compiler file manager.", e);
+		}
+
+		List<String> options = new ArrayList<String>();
+		options.add("-proc:none");
+		options.add("-implicit:none");
+		addTargetOptions(compiler, options);
+		addCompilerPluginOptions(options);
+
+		StandardJavaFileManager fileManager = lease.getFileManager();
+		WriteAvoidingFileManager outputFileManager = new WriteAvoidingFileManager(fileManager, getSourceCharset(), tracker, true);
+		CompilationTask task = compiler.getTask(new PrintWriter(System.out), outputFileManager, dl, options, null, 
+			fileManager.getJavaFileObjectsFromFiles(generatedSources));
+		metrics.count("generated-compilation-units", generatedSources.size());
+		AptMetrics.Measure compile = metrics.start("compile-generated");
+		try
+		{
+			return task.call();
+		}
+		finally
+		{
+			compile.stop();
 		}
-		return false;
 	}
 
-	protected boolean scanModifiedSourceFiles(Set<File> modifiedSources, Set<String> allSources) throws MojoExecutionException
+	private DependencyGraph runFullAPT() throws MojoExecutionException
 	{
+		Set<File> files;
+		AptMetrics.Measure scan = metrics.start("scan");
 		try
 		{
-			boolean hasChanges = false;
-			File checkFile = getCheckFile();
+			files = getAllFiles(JAVA_FILES, null, false);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error retrieving the source files list.", e);
+		}
+		List<ProcessorDescriptor> processors = getProcessorDescriptors();
+		Set<File> compilationUnits = selectCompilationUnits(files, processors, null);
+		scan.stop();
+		Collection<File> classpath = getProcessingClasspath(files, processors, true);
+		ProcessingTracker tracker = (threads > 1 && mode == AptMode.PROCESS_ONLY) ? runParallelAPT(compilationUnits, processors, classpath) : 
+			runAPT(compilationUnits, false, processors, classpath, getCompilationSourcePath(), getGeneratedSourcesDir(), getOutputDirectory());
+		if (tracker == null)
+		{
+			return null;
+		}
+		DependencyGraph graph = new DependencyGraph();
+		tracker.updateGraph(graph, Collections.<String>emptySet());
+		return graph;
+	}
+
+	/**
+	 * Split the source files by package and process each group concurrently. Each group writes to its own
+	 * output folders, that are merged into the real output folders when all groups finish.
+	 */
+	private ProcessingTracker runParallelAPT(Set<File> files, final List<ProcessorDescriptor> processors, final Collection<File> classpath) 
+		throws MojoExecutionException
+	{
+		List<Set<File>> shards = SourceShards.byPackage(files, threads);
+		if (shards.size() < 2)
+		{
+			return runAPT(files, false, processors, classpath, getCompilationSourcePath(), getGeneratedSourcesDir(), getOutputDirectory());
+		}
+		getLog().info("Running annotation processors in " + shards.size() + " parallel shards.");
+		metrics.count("shards", shards.size());
 
-			Set<File> files = getAllFiles(JAVA_FILES, null, false);		
-			for (File sourceFile : files)
+		final Collection<File> sourcePath = getSourceRoots();
+		File shardsDir = new File(getProject().getBuild().getDirectory(), "crux-plugin/apt-shards");
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		try
+		{
+			FileUtils.deleteDirectory(shardsDir);
+			List<File> shardSourceDirs = new ArrayList<File>();
+			List<File> shardClassDirs = new ArrayList<File>();
+			List<Future<ProcessingTracker>> results = new ArrayList<Future<ProcessingTracker>>();
+			for (int i = 0; i < shards.size(); i++)
 			{
-				allSources.add(sourceFile.getCanonicalPath());
-				if (!isUptodate(checkFile, sourceFile))
+				final Set<File> shard = shards.get(i);
+				final File shardSourceDir = new File(shardsDir, "shard-" + i + "/sources");
+				final File shardClassDir = new File(shardsDir, "shard-" + i + "/classes");
+				shardSourceDirs.add(shardSourceDir);
+				shardClassDirs.add(shardClassDir);
+				results.add(executor.submit(new Callable<ProcessingTracker>()
 				{
-					if (getLog().isDebugEnabled())
+					@Override
+					public ProcessingTracker call() throws Exception
 					{
-						getLog().debug("Modified file found: " + sourceFile.getCanonicalPath() + " is newer than " + checkFile.getCanonicalPath());
+						return runAPT(shard, false, processors, classpath, sourcePath, shardSourceDir, shardClassDir);
 					}
-					hasChanges = true;
-					modifiedSources.add(sourceFile);
+				}));
+			}
+
+			ProcessingTracker tracker = new ProcessingTracker(getSourceRoots());
+			for (int i = 0; i < results.size(); i++)
+			{
+				ProcessingTracker shardTracker = results.get(i).get();
+				if (shardTracker != null)
+				{
+					Map<File, File> relocations = new HashMap<File, File>();
+					relocations.put(shardSourceDirs.get(i), getGeneratedSourcesDir());
+					relocations.put(shardClassDirs.get(i), getOutputDirectory());
+					tracker.merge(shardTracker, relocations);
 				}
 			}
-			return hasChanges;
+
+			AptMetrics.Measure merge = metrics.start("merge");
+			ShardOutputMerger merger = new ShardOutputMerger(getSourceCharset());
+			merger.merge(shardSourceDirs, getGeneratedSourcesDir());
+			merger.merge(shardClassDirs, getOutputDirectory());
+			FileUtils.deleteDirectory(shardsDir);
+			merge.stop();
+			return tracker;
 		}
-		catch (Exception e)
+		catch (ExecutionException e)
 		{
-			throw new MojoExecutionException("Failed to generate mapping files", e);
+			if (e.getCause() instanceof MojoExecutionException)
+			{
+				throw (MojoExecutionException) e.getCause();
+			}
+			throw new MojoExecutionException("Error running annotation processors.", e.getCause());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new MojoExecutionException("Annotation processing interrupted.", e);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error merging the annotation processors output.", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
 		}
 	}
-	
-	private Charset getCharset()
-	{
-		Charset charset = null;
-		;
 
-		if (getEncoding() != null)
+	/**
+	 * When the annotation pre-filter is enabled, select only the files that mention any annotation handled 
+	 * by the processors. The other sources are resolved by the compiler through the source path, when needed.
+	 * 
+	 * @param graph dependencies graph of the previous run, if any
+	 * @return the selected files. Empty if no processor needs to run
+	 */
+	private Set<File> selectCompilationUnits(Set<File> files, List<ProcessorDescriptor> processors, DependencyGraph graph) 
+		throws MojoExecutionException
+	{
+		if (!prefilter || mode == AptMode.FUSED || files.isEmpty())
 		{
-			try
+			return files;
+		}
+		try
+		{
+			AnnotationPrefilter filter = AnnotationPrefilter.create(getProcessors(processors), getSourceCharset());
+			if (filter == null)
 			{
-				charset = Charset.forName(getEncoding());
+				getLog().debug("Annotation pre-filter not applicable for the current processors or encoding.");
+				return files;
 			}
-			catch (IllegalCharsetNameException ex1)
+			Set<File> candidates = filter.filter(files);
+			if (getLog().isDebugEnabled())
 			{
-				getLog().warn(String.format("the given charset name [%s] is illegal!. default is used", getEncoding()));
-				charset = null;
+				getLog().debug("Annotation pre-filter selected " + candidates.size() + " of " + files.size() + " source files.");
 			}
-			catch (UnsupportedCharsetException ex2)
+			if (candidates.isEmpty())
 			{
-				getLog().warn(String.format("the given charset name [%s] is unsupported!. default is used", getEncoding()));
-				charset = null;
+				candidates = selectAggregatingUnits(files, processors, graph);
 			}
+			return candidates;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error scanning source files for annotations.", e);
 		}
-		return charset;
 	}
 
-	private File getCheckFile()
-    {
-		return new File(getProject().getBuild().getOutputDirectory(), "META-INF/crux-plugin/report");
-    }
-
-	private DiagnosticListener<JavaFileObject> getDiagnosticListener()
+	/**
+	 * Select the files that keep the aggregating processors running when no file mentions their annotations, 
+	 * so they still refresh their aggregated outputs. Those are the previous inputs of the processors found on 
+	 * the dependencies graph or, when none of them is among the files, the first file in path order.
+	 * 
+	 * @return the selected files. Empty if no aggregating processor is informed
+	 */
+	private Set<File> selectAggregatingUnits(Set<File> files, List<ProcessorDescriptor> processors, DependencyGraph graph)
 	{
-		final DiagnosticListener<JavaFileObject> dl = new DiagnosticListener<JavaFileObject>()
+		Set<File> result = new TreeSet<File>();
+		boolean aggregating = false;
+		for (ProcessorDescriptor descriptor : processors)
 		{
-			public void report(Diagnostic<? extends JavaFileObject> diagnostic)
+			if (descriptor.getKind() != ProcessorDescriptor.Kind.AGGREGATING)
 			{
-				final Kind kind = diagnostic.getKind();
-
-				if (Kind.ERROR == kind)
+				continue;
+			}
+			aggregating = true;
+			if (graph != null)
+			{
+				for (String input : graph.getSourcesProcessedBy(descriptor.getClassName()))
 				{
-					getLog().error(String.format("APT: %s", diagnostic));
+					File file = new File(input);
+					if (files.contains(file))
+					{
+						result.add(file);
+					}
 				}
-				else if (Kind.MANDATORY_WARNING == kind || Kind.WARNING == kind)
+			}
+		}
+		if (aggregating && result.isEmpty())
+		{
+			result.add(new TreeSet<File>(files).first());
+		}
+		return result;
+	}
+
+	private Collection<File> getCompilationSourcePath()
+	{
+		return (prefilter && mode != AptMode.FUSED) ? getSourceRoots() : null;
+	}
+
+	/**
+	 * Select the classpath entries needed to process the given sources, when the minimal classpath is enabled.
+	 * 
+	 * @param files processed sources
+	 * @param allSources true if the files are all the project sources
+	 * @return the selected entries or null if the full compile classpath must be used 
+	 */
+	private Collection<File> getProcessingClasspath(Set<File> files, List<ProcessorDescriptor> processors, boolean allSources) 
+		throws MojoExecutionException
+	{
+		if (!minimalClasspath)
+		{
+			return null;
+		}
+		AptMetrics.Measure measure = metrics.start("classpath");
+		try
+		{
+			Set<String> packages = ClasspathReducer.getImportedPackages(files, getSourceCharset());
+			for (Processor processor : getProcessors(processors))
+			{
+				for (String annotationType : processor.getSupportedAnnotationTypes())
+				{
+					ClasspathReducer.addPrefixes(annotationType, packages);
+				}
+			}
+			File selectionFile = new File(getProject().getBuild().getDirectory(), "crux-plugin/apt-classpath");
+			return classpathReducer.reduce(getClasspath(Artifact.SCOPE_COMPILE, false), packages, allSources, selectionFile);
+		}
+		catch (IOException e)
+		{
+			getLog().warn("Error selecting the minimal classpath. Using the full compile classpath.", e);
+			return null;
+		}
+		finally
+		{
+			measure.stop();
+		}
+	}
+
+	/**
+	 * Run the annotation processors over the modified sources and their dependents. When a deleted or modified source 
+	 * stops contributing to an aggregated output, the sources contributing to any aggregated output are processed 
+	 * again from scratch. Outputs of the previous run that are not generated anymore are deleted, leaving all other 
+	 * generated files untouched.
+	 */
+	private DependencyGraph runIncrementalAPT(SourceIndex index, DependencyGraph graph, Set<File> modifiedSources, 
+											Set<String> deletedSources, Set<String> changedPackages) throws MojoExecutionException
+	{
+		try
+		{
+			Set<String> changedSources = new HashSet<String>(deletedSources);
+			Map<String, File> affectedSources = new HashMap<String, File>();
+			for (File sourceFile : modifiedSources)
+			{
+				// files found by the source index already have canonical paths
+				String path = sourceFile.getPath();
+				changedSources.add(path);
+				affectedSources.put(path, sourceFile);
+			}
+			for (String source : graph.getSourcesReferencing(changedPackages))
+			{
+				if (index.get(source) != null)
+				{
+					if (getLog().isDebugEnabled())
+					{
+						getLog().debug("File affected by classpath changes found: " + source);
+					}
+					changedSources.add(source);
+					affectedSources.put(source, new File(source));
+				}
+			}
+			for (String dependent : graph.getDependents(changedSources))
+			{
+				if (index.get(dependent) != null)
+				{
+					if (getLog().isDebugEnabled())
+					{
+						getLog().debug("Dependent file found: " + dependent);
+					}
+					affectedSources.put(dependent, new File(dependent));
+				}
+			}
+
+			boolean rebuildAggregatedOutputs = hasDeletedResources(deletedSources, graph);
+			List<ProcessorDescriptor> processors;
+			if (rebuildAggregatedOutputs)
+			{
+				addAggregatingSources(index, graph, affectedSources);
+				processors = getProcessorDescriptors();
+			}
+			else
+			{
+				processors = selectIncrementalProcessors(index, graph, changedSources, affectedSources);
+			}
+
+			Set<String> previousOutputs = getOutputs(graph, changedSources);
+			previousOutputs.addAll(getOutputs(graph, affectedSources.keySet()));
+			for (String deletedSource : deletedSources)
+			{
+				graph.remove(deletedSource);
+			}
+
+			if (!affectedSources.isEmpty())
+			{
+				ProcessingTracker tracker = runAPT(new HashSet<File>(affectedSources.values()), !rebuildAggregatedOutputs, processors, graph);
+				if (tracker == null)
+				{
+					return null;
+				}
+				if (!rebuildAggregatedOutputs && tracker.hasDroppedAggregatedOutputs(graph, affectedSources.keySet()))
+				{
+					getLog().info("Aggregated outputs contain stale entries. Running annotation processors over all their sources.");
+					addAggregatingSources(index, graph, affectedSources);
+					previousOutputs.addAll(getOutputs(graph, affectedSources.keySet()));
+					tracker = runAPT(new HashSet<File>(affectedSources.values()), false, getProcessorDescriptors(), graph);
+					if (tracker == null)
+					{
+						return null;
+					}
+				}
+				tracker.updateGraph(graph, affectedSources.keySet());
+			}
+
+			previousOutputs.removeAll(getOutputs(graph, graph.getSources()));
+			deleteOutputs(previousOutputs);
+			return graph;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error processing modified source files.", e);
+		}
+	}
+
+	/**
+	 * Add all existing sources that contribute to any aggregated output. Processing them from scratch
+	 * regenerates those outputs completely.
+	 */
+	private void addAggregatingSources(SourceIndex index, DependencyGraph graph, Map<String, File> affectedSources)
+	{
+		for (String source : graph.getSources())
+		{
+			if (!graph.get(source).getAggregatedOutputs().isEmpty() && index.get(source) != null)
+			{
+				affectedSources.put(source, new File(source));
+			}
+		}
+	}
+
+	private Set<String> getOutputs(DependencyGraph graph, Collection<String> sources)
+	{
+		Set<String> result = new HashSet<String>();
+		for (String source : sources)
+		{
+			DependencyGraph.Node node = graph.get(source);
+			if (node != null)
+			{
+				result.addAll(node.getOutputs());
+				result.addAll(node.getAggregatedOutputs());
+			}
+		}
+		return result;
+	}
+
+	private void deleteOutputs(Set<String> outputs)
+	{
+		for (String output : outputs)
+		{
+			if (mode == AptMode.PROCESS_ONLY && output.endsWith(".class"))
+			{
+				// classes compiled by a previous fused run are now managed by the compiler plugin
+				continue;
+			}
+			File outputFile = new File(output);
+			if (outputFile.exists())
+			{
+				if (getLog().isDebugEnabled())
+				{
+					getLog().debug("Deleting stale generated file: " + output);
+				}
+				outputFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the annotation processors declared on the plugin classpath.
+	 * 
+	 * @see ProcessorDescriptor
+	 */
+	private List<ProcessorDescriptor> getProcessorDescriptors() throws MojoExecutionException
+	{
+		if (processorDescriptors == null)
+		{
+			try
+			{
+				processorDescriptors = ProcessorDescriptor.load(APTMojo.class.getClassLoader());
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException("Error loading the annotation processors declarations.", e);
+			}
+			if (getLog().isDebugEnabled())
+			{
+				for (ProcessorDescriptor descriptor : processorDescriptors)
 				{
-					getLog().warn(String.format("APT: %s", diagnostic));
+					getLog().debug("Annotation processor found: " + descriptor.getClassName() + " (" + descriptor.getKind() + ")");
 				}
-				else if (Kind.NOTE == kind)
+			}
+		}
+		return processorDescriptors;
+	}
+
+	/**
+	 * Create new instances of the given processors.
+	 */
+	private List<Processor> getProcessors(List<ProcessorDescriptor> descriptors) throws MojoExecutionException
+	{
+		List<Processor> processors = new ArrayList<Processor>();
+		for (ProcessorDescriptor descriptor : descriptors)
+		{
+			try
+			{
+				processors.add(descriptor.newInstance());
+			}
+			catch (IOException e)
+			{
+				throw new MojoExecutionException(e.getMessage(), e.getCause());
+			}
+		}
+		return processors;
+	}
+
+	/**
+	 * Select the processors that must run over the affected sources. All isolating processors run. An aggregating
+	 * processor runs only when any of its previous inputs changed or when an affected source mentions any of its 
+	 * annotations. In that case all its previous inputs are added to the affected sources, so it regenerates its 
+	 * outputs from all of them.
+	 */
+	private List<ProcessorDescriptor> selectIncrementalProcessors(SourceIndex index, DependencyGraph graph, Set<String> changedSources, 
+																Map<String, File> affectedSources) throws MojoExecutionException, IOException
+	{
+		List<ProcessorDescriptor> result = new ArrayList<ProcessorDescriptor>();
+		Map<String, File> aggregatingInputs = new HashMap<String, File>();
+		for (ProcessorDescriptor descriptor : getProcessorDescriptors())
+		{
+			if (descriptor.getKind() == ProcessorDescriptor.Kind.ISOLATING)
+			{
+				result.add(descriptor);
+				continue;
+			}
+			Set<String> inputs = graph.getSourcesProcessedBy(descriptor.getClassName());
+			boolean run = !Collections.disjoint(inputs, changedSources) || !Collections.disjoint(inputs, affectedSources.keySet());
+			if (!run && !affectedSources.isEmpty())
+			{
+				AnnotationPrefilter filter = AnnotationPrefilter.create(getProcessors(Collections.singletonList(descriptor)), getSourceCharset());
+				run = (filter == null) || !filter.filter(affectedSources.values()).isEmpty();
+			}
+			if (run)
+			{
+				result.add(descriptor);
+				for (String input : inputs)
 				{
-					getLog().info(String.format("APT: %s", diagnostic));
+					if (index.get(input) != null)
+					{
+						aggregatingInputs.put(input, new File(input));
+					}
 				}
-				else if (Kind.OTHER == kind)
+			}
+			else if (getLog().isDebugEnabled())
+			{
+				getLog().debug("Aggregating processor " + descriptor.getClassName() + " is up to date.");
+			}
+		}
+		affectedSources.putAll(aggregatingInputs);
+		return result;
+	}
+
+	protected SourceIndex getPreviousIndex() throws MojoExecutionException
+	{
+		try
+		{
+			SourceIndex index = SourceIndex.read(getCheckFile());
+			if (index == null && getLog().isDebugEnabled())
+			{
+				getLog().debug("No previous source index found. All source files will be processed.");
+			}
+			return index;
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error checking source files modifications", e);
+		}
+	}
+	
+	protected ClasspathState getPreviousClasspathState() throws MojoExecutionException
+	{
+		try
+		{
+			return ClasspathState.read(getClasspathStateFile());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error reading the classpath state", e);
+		}
+	}
+
+	/**
+	 * Compare the current classpath and annotation processors with the ones used by the previous run.
+	 * 
+	 * @param previousState state recorded by the previous run, if any
+	 * @param changedPackages receives the packages of the modified classpath entries
+	 * @return the current state
+	 */
+	protected ClasspathState scanClasspath(ClasspathState previousState, Set<String> changedPackages) throws MojoExecutionException
+	{
+		Collection<File> classpath = new ArrayList<File>(getClasspath(Artifact.SCOPE_COMPILE, false));
+		// the project output folder is written by this build
+		classpath.remove(new File(getProject().getBuild().getOutputDirectory()));
+		classpath.remove(getOutputDirectory());
+		try
+		{
+			ClasspathState state = (previousState == null) ? new ClasspathState() : previousState;
+			return state.scan(classpath, getProcessorsFingerprint(), changedPackages);
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error checking classpath modifications", e);
+		}
+	}
+
+	/**
+	 * Identify the versions of the annotation processors (and of this plugin) by the location, size and 
+	 * modification time of the archives containing them.
+	 */
+	private String getProcessorsFingerprint() throws MojoExecutionException
+	{
+		Set<String> locations = new TreeSet<String>();
+		for (ProcessorDescriptor descriptor : getProcessorDescriptors())
+		{
+			locations.add(descriptor.getClassName() + "," + descriptor.getKind());
+		}
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		classes.add(getClass());
+		for (Processor processor : getProcessors(getProcessorDescriptors()))
+		{
+			classes.add(processor.getClass());
+		}
+		for (Class<?> processorClass : classes)
+		{
+			CodeSource codeSource = processorClass.getProtectionDomain().getCodeSource();
+			if (codeSource != null && codeSource.getLocation() != null)
+			{
+				try
+				{
+					File location = new File(codeSource.getLocation().toURI());
+					locations.add(location.getAbsolutePath() + ":" + location.length() + ":" + location.lastModified());
+				}
+				catch (URISyntaxException e)
 				{
+					locations.add(codeSource.getLocation().toString());
+				}
+			}
+		}
+		return StringUtils.join(locations.iterator(), ";");
+	}
+
+	protected DependencyGraph getPreviousGraph() throws MojoExecutionException
+	{
+		try
+		{
+			return DependencyGraph.read(getGraphFile());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error reading the source dependencies graph", e);
+		}
+	}
+
+	/**
+	 * Check if any deleted source contributed to an aggregated output. Annotation processors can not remove 
+	 * entries from those outputs incrementally, so all sources contributing to them must be processed again.
+	 */
+	protected boolean hasDeletedResources(Set<String> deletedSources, DependencyGraph previousGraph) throws MojoExecutionException
+	{
+		for (String deletedSource : deletedSources)
+		{
+			DependencyGraph.Node node = previousGraph.get(deletedSource);
+			if (node != null && !node.getAggregatedOutputs().isEmpty())
+			{
+				if (getLog().isDebugEnabled())
+				{
+					getLog().debug("Deleted file found: " + deletedSource);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
 
-					getLog().info(String.format("APT: %s", diagnostic));
+	protected SourceIndex scanModifiedSourceFiles(SourceIndex previousIndex, Set<File> modifiedSources) throws MojoExecutionException
+	{
+		try
+		{
+			SourceIndex index;
+			if (isIncrementalBuild() && previousIndex != null)
+			{
+				// the IDE already knows which files changed. No need to walk the source folders
+				Set<String> deletedPaths = new HashSet<String>();
+				Collection<SourceTree.FileEntry> files = getChangedFileEntries(JAVA_FILES, null, false, deletedPaths);
+				index = previousIndex.update(files, deletedPaths, modifiedSources);
+			}
+			else
+			{
+				Collection<SourceTree.FileEntry> files = getAllFileEntries(JAVA_FILES, null, false);
+				if (previousIndex == null)
+				{
+					previousIndex = new SourceIndex();
 				}
+				index = previousIndex.scan(files, modifiedSources);
 			}
-		};
-		return dl;
+			if (getLog().isDebugEnabled())
+			{
+				for (File sourceFile : modifiedSources)
+				{
+					getLog().debug("Modified file found: " + sourceFile.getPath());
+				}
+			}
+			return index;
+		}
+		catch (Exception e)
+		{
+			throw new MojoExecutionException("Failed to generate mapping files", e);
+		}
+	}
+	
+	private Charset getCharset()
+	{
+		Charset charset = null;
+		;
+
+		if (getEncoding() != null)
+		{
+			try
+			{
+				charset = Charset.forName(getEncoding());
+			}
+			catch (IllegalCharsetNameException ex1)
+			{
+				getLog().warn(String.format("the given charset name [%s] is illegal!. default is used", getEncoding()));
+				charset = null;
+			}
+			catch (UnsupportedCharsetException ex2)
+			{
+				getLog().warn(String.format("the given charset name [%s] is unsupported!. default is used", getEncoding()));
+				charset = null;
+			}
+		}
+		return charset;
+	}
+
+	private File getCheckFile()
+    {
+		return new File(getProject().getBuild().getOutputDirectory(), "META-INF/crux-plugin/index");
+    }
+
+	private Charset getSourceCharset()
+	{
+		Charset charset = getCharset();
+		return (charset == null) ? Charset.defaultCharset() : charset;
+	}
+
+	private File getClasspathStateFile()
+    {
+		return new File(getProject().getBuild().getOutputDirectory(), "META-INF/crux-plugin/classpath");
+    }
+
+	private File getGraphFile()
+    {
+		return new File(getProject().getBuild().getOutputDirectory(), "META-INF/crux-plugin/graph");
+    }
+
+	private List<File> getSourceRoots()
+	{
+		List<File> sourceRoots = new ArrayList<File>();
+		for (String sourceRoot : getProject().getCompileSourceRoots())
+		{
+			sourceRoots.add(new File(sourceRoot));
+		}
+		return sourceRoots;
+	}
+
+	/**
+	 * Retrieve the collector for the diagnostics of the current execution.
+	 */
+	private synchronized DiagnosticsCollector getDiagnosticsCollector()
+	{
+		if (diagnosticsCollector == null)
+		{
+			File detailFile = new File(getProject().getBuild().getDirectory(), "crux-plugin/apt-diagnostics.log");
+			diagnosticsCollector = new DiagnosticsCollector(getLog(), detailFile, diagnosticsLogLimit);
+		}
+		return diagnosticsCollector;
+	}
+
+	private synchronized void closeDiagnosticsCollector()
+	{
+		if (diagnosticsCollector != null)
+		{
+			try
+			{
+				diagnosticsCollector.close();
+			}
+			catch (IOException e)
+			{
+				getLog().warn("Error writing the annotation processing diagnostics.", e);
+			}
+			diagnosticsCollector = null;
+		}
 	}
 
 	private static String getLatestSupportedVersion()
@@ -396,23 +1323,22 @@ public class APTMojo extends AbstractToolMojo
 		}
 	}
 	
-	private List<String> getOptions(boolean incremental) throws MojoExecutionException
+	private List<String> getOptions(JavaCompiler compiler, boolean incremental) throws MojoExecutionException
 	{
 		List<String> options = new ArrayList<String>(10);
 
-		options.add("-cp");
-		Collection<File> classpath = getClasspath(Artifact.SCOPE_COMPILE, false);
-		List<String> path = new ArrayList<String>(classpath.size());
-		for (File file : classpath)
+		if (mode == AptMode.FUSED)
 		{
-			path.add(file.getAbsolutePath());
+			addTargetOptions(compiler, options);
+			addCompilerPluginOptions(options);
+		}
+		else
+		{
+			// generated sources are compiled later, on the GENERATED mode
+			options.add("-proc:only");
+			options.add("-source");
+			options.add(getSourceVersion());
 		}
-		options.add(StringUtils.join(path.iterator(), File.pathSeparator));
-
-		options.add("-proc:only");
-
-		options.add("-source");
-		options.add(getSourceVersion());
 
 		if (incremental)
 		{
@@ -420,39 +1346,278 @@ public class APTMojo extends AbstractToolMojo
 		}
 		
 		options.add("-A"+CruxAnnotationProcessor.CRUX_RUN_APT+"=true");
-		
-		options.add("-d");
-		options.add(getOutputDirectory().getPath());
-
-		options.add("-s");
-		options.add(getGeneratedSourcesDir().getPath());
 		return options;
 	}
 
-	private void updateReportFile(Collection<String> previousListSource) throws MojoExecutionException
+	/**
+	 * Add the Java version options used by the compiler plugin, as class files are written on the compiling 
+	 * modes. The release is used when informed and supported by the compiler, otherwise the source and target 
+	 * versions.
+	 */
+	private void addTargetOptions(JavaCompiler compiler, List<String> options) throws MojoExecutionException
+	{
+		String release = getCompilerSetting("release");
+		String source;
+		String target;
+		if (!StringUtils.isEmpty(release))
+		{
+			if (compiler.isSupportedOption("--release") >= 0)
+			{
+				options.add("--release");
+				options.add(release);
+				return;
+			}
+			source = release;
+			target = release;
+		}
+		else
+		{
+			target = getCompilerSetting("target");
+			if (StringUtils.isEmpty(target))
+			{
+				throw new MojoExecutionException("The " + mode + " mode writes class files, so the Java version of the project " 
+					+ "must be informed. Set the maven.compiler.release property, or the maven.compiler.source and " 
+					+ "maven.compiler.target properties.");
+			}
+			source = getCompilerSetting("source");
+			if (StringUtils.isEmpty(source))
+			{
+				source = target;
+			}
+		}
+		options.add("-source");
+		options.add(source);
+		options.add("-target");
+		options.add(target);
+	}
+
+	/**
+	 * Add the options of the compiler plugin that change the generated classes or the checks of the compiler.
+	 */
+	private void addCompilerPluginOptions(List<String> options) throws MojoExecutionException
+	{
+		if ("false".equals(getCompilerSetting("debug")))
+		{
+			options.add("-g:none");
+		}
+		else
+		{
+			String debugLevel = getCompilerSetting("debuglevel");
+			options.add(StringUtils.isEmpty(debugLevel) ? "-g" : "-g:" + debugLevel);
+		}
+		if ("true".equals(getCompilerSetting("parameters")))
+		{
+			options.add("-parameters");
+		}
+		Xpp3Dom arguments = getCompilerConfiguration("compilerArguments");
+		if (arguments != null)
+		{
+			for (Xpp3Dom argument : arguments.getChildren())
+			{
+				options.add("-" + argument.getName());
+				if (!StringUtils.isEmpty(argument.getValue()))
+				{
+					options.add(argument.getValue().trim());
+				}
+			}
+		}
+		String argument = getCompilerSetting("compilerArgument");
+		if (!StringUtils.isEmpty(argument))
+		{
+			options.addAll(Arrays.asList(StringUtils.split(argument)));
+		}
+		options.addAll(getCompilerSettings("compilerArgs"));
+	}
+
+	/**
+	 * Create the other annotation processors run by the compiler plugin, for the <code>FUSED</code> mode: the ones 
+	 * of its <code>annotationProcessors</code> setting or, when not informed, the ones declared on the compile 
+	 * classpath. The Crux processors are not repeated.
+	 */
+	private List<Processor> getProjectProcessors() throws MojoExecutionException
+	{
+		String proc = getCompilerSetting("proc");
+		if ("only".equals(proc))
+		{
+			throw new MojoExecutionException("The FUSED mode compiles the project sources, but the compiler plugin is configured " 
+				+ "with proc=only. Use the PROCESS_ONLY mode.");
+		}
+		if (getCompilerConfiguration("annotationProcessorPaths") != null)
+		{
+			throw new MojoExecutionException("The FUSED mode does not support the annotationProcessorPaths setting of the " 
+				+ "compiler plugin. Declare those processors as project dependencies or use the PROCESS_ONLY mode.");
+		}
+		List<ProcessorDescriptor> descriptors = new ArrayList<ProcessorDescriptor>();
+		if ("none".equals(proc))
+		{
+			return getProcessors(descriptors);
+		}
+		Set<String> cruxProcessors = new HashSet<String>();
+		for (ProcessorDescriptor descriptor : getProcessorDescriptors())
+		{
+			cruxProcessors.add(descriptor.getClassName());
+		}
+		ClassLoader classLoader = getProjectClassLoader(false);
+		List<String> classNames = getCompilerSettings("annotationProcessors");
+		if (classNames.isEmpty())
+		{
+			classNames = getDeclaredProcessors(classLoader);
+		}
+		for (String className : classNames)
+		{
+			if (cruxProcessors.add(className))
+			{
+				if (getLog().isDebugEnabled())
+				{
+					getLog().debug("Project annotation processor found: " + className);
+				}
+				// kind is only used by the incremental runs, that are always full on the fused mode
+				descriptors.add(new ProcessorDescriptor(className, ProcessorDescriptor.Kind.AGGREGATING, classLoader));
+			}
+		}
+		return getProcessors(descriptors);
+	}
+
+	/**
+	 * Read the processors declared on the <code>META-INF/services</code> registries of the classpath, like the 
+	 * compiler does when no processor is informed.
+	 */
+	private List<String> getDeclaredProcessors(ClassLoader classLoader) throws MojoExecutionException
+	{
+		Set<String> result = new LinkedHashSet<String>();
+		try
+		{
+			Enumeration<URL> registries = classLoader.getResources("META-INF/services/" + Processor.class.getName());
+			while (registries.hasMoreElements())
+			{
+				BufferedReader reader = new BufferedReader(new InputStreamReader(registries.nextElement().openStream(), "UTF-8"));
+				try
+				{
+					String line;
+					while ((line = reader.readLine()) != null)
+					{
+						int comment = line.indexOf('#');
+						String className = (comment < 0 ? line : line.substring(0, comment)).trim();
+						if (className.length() > 0)
+						{
+							result.add(className);
+						}
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error reading the annotation processors of the project classpath.", e);
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Retrieve a setting of the compiler plugin, from its configuration or from its <code>maven.compiler</code> 
+	 * property.
+	 */
+	private String getCompilerSetting(String name)
+	{
+		Xpp3Dom setting = getCompilerConfiguration(name);
+		if (setting != null && !StringUtils.isEmpty(setting.getValue()))
+		{
+			return setting.getValue().trim();
+		}
+		String value = getProject().getProperties().getProperty("maven.compiler." + name);
+		return (value == null) ? null : value.trim();
+	}
+
+	/**
+	 * Retrieve the values of a list setting of the compiler plugin, like <code>compilerArgs</code>.
+	 */
+	private List<String> getCompilerSettings(String name)
+	{
+		List<String> result = new ArrayList<String>();
+		Xpp3Dom setting = getCompilerConfiguration(name);
+		if (setting != null)
+		{
+			for (Xpp3Dom value : setting.getChildren())
+			{
+				if (!StringUtils.isEmpty(value.getValue()))
+				{
+					result.add(value.getValue().trim());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve an element of the compiler plugin configuration, or null if not configured.
+	 */
+	private Xpp3Dom getCompilerConfiguration(String name)
+	{
+		Plugin plugin = getProject().getPlugin("org.apache.maven.plugins:maven-compiler-plugin");
+		if (plugin != null && plugin.getConfiguration() instanceof Xpp3Dom)
+		{
+			return ((Xpp3Dom) plugin.getConfiguration()).getChild(name);
+		}
+		return null;
+	}
+
+	private void updateGraphFile(DependencyGraph graph) throws MojoExecutionException
     {
-		File checkFile = getCheckFile();
-		
-		if (!checkFile.exists())
+		try
+        {
+			graph.write(getGraphFile());
+        }
+        catch (IOException e)
+        {
+	        throw new MojoExecutionException("Error generating source dependencies graph file", e);
+        }
+    }
+
+	private void updateClasspathStateFile(ClasspathState classpathState) throws MojoExecutionException
+	{
+		try
 		{
-			checkFile.getParentFile().mkdirs();
+			classpathState.write(getClasspathStateFile());
 		}
-		
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error generating classpath state file", e);
+		}
+	}
+
+	private void updateMetricsFile() throws MojoExecutionException
+	{
+		File metricsFile = new File(getProject().getBuild().getDirectory(), "crux-plugin/metrics/apt.json");
+		try
+		{
+			metrics.write(metricsFile, getProject().getGroupId() + ":" + getProject().getArtifactId());
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error writing annotation processing metrics", e);
+		}
+	}
+
+	private void updateIndexFile(SourceIndex index) throws MojoExecutionException
+    {
 		try
         {
-	        PrintWriter printer = new PrintWriter(checkFile);
-	        printer.println("# executed at: " + System.currentTimeMillis());
-	        
-	        for (String sourceFile : previousListSource)
-            {
-		        printer.println(sourceFile);
-            }
-	        
-	        printer.close();
+			index.write(getCheckFile());
+			
+			// remove the report file written by previous plugin versions
+			File legacyReportFile = new File(getCheckFile().getParentFile(), "report");
+			if (legacyReportFile.exists())
+			{
+				legacyReportFile.delete();
+			}
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-	        throw new MojoExecutionException("Error generating report file", e);
+	        throw new MojoExecutionException("Error generating index file", e);
         }
     }
 }
\ No newline at end of file
@@ -61,6 +61,13 @@ public abstract class AbstractResourcesMojo extends AbstractShellMojo
 		return builder;
 	}
 
+	@Override
+	protected void releaseProjectClassLoaders()
+	{
+		builder = null;
+		super.releaseProjectClassLoaders();
+	}
+
 	protected File setupGenerateDirectory()
 	{
 		if (!getGeneratedResourcesDir().exists())
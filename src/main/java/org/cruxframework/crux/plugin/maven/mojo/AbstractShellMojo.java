@@ -50,6 +50,17 @@ public abstract class AbstractShellMojo extends AbstractToolMojo
 	private String jvm;
 
 
+	/**
+	 * How the classpath is given to the forked processes. <code>classpath</code> passes it on the command line. 
+	 * <code>argfile</code> writes it to a Java argument file, which requires a Java 9 or newer jvm. <code>jar</code> 
+	 * writes it to the manifest of an empty jar, which works on any jvm, but tools that read the 
+	 * <code>java.class.path</code> property only see that jar. <code>auto</code> uses an argument file for long 
+	 * classpaths when the jvm supports it. Launcher files are written to <code>target/crux-plugin/launchers</code> 
+	 * and reused while the classpath does not change.
+	 */
+	@Parameter(property = "crux.launcher", defaultValue = JavaCommand.LAUNCHER_AUTO)
+	private String launcher;
+
 	/**
 	 * Forked process execution timeOut. Usefull to avoid maven to hang in continuous integration server.
 	 */
@@ -67,6 +78,7 @@ public abstract class AbstractShellMojo extends AbstractToolMojo
 	public JavaCommand createJavaCommand()
 	{
 		return new JavaCommand().setLog(getLog()).setJvm(getJvm()).setJvmArgs(getJvmArgs()).setTimeOut(timeOut)
+		    .setLauncher(launcher).setLauncherDirectory(new File(getProject().getBuild().getDirectory(), "crux-plugin/launchers"))
 		    .addClassPathProcessors(new ClassPathProcessor()
 		    {
 			    @Override
@@ -19,27 +19,42 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.FileUtils;
-import org.cruxframework.crux.plugin.maven.ClasspathBuilder;
+import org.codehaus.plexus.util.Scanner;
+import org.codehaus.plexus.util.StringUtils;
+import org.cruxframework.crux.plugin.maven.ClassFileLibraryBuilder;
+import org.cruxframework.crux.plugin.maven.ClassLoaderPool;
 import org.cruxframework.crux.plugin.maven.ClasspathBuilderException;
+import org.cruxframework.crux.plugin.maven.ClasspathCache;
+import org.cruxframework.crux.plugin.maven.IndexedClassLoader;
+import org.cruxframework.crux.plugin.maven.incremental.GitChanges;
+import org.cruxframework.crux.plugin.maven.incremental.PackageIndex;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTree;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTreeCache;
+import org.cruxframework.crux.plugin.maven.incremental.StateStore;
+import org.sonatype.plexus.build.incremental.BuildContext;
 
 import com.thoughtworks.qdox.JavaProjectBuilder;
 import com.thoughtworks.qdox.library.ClassLibraryBuilder;
-import com.thoughtworks.qdox.library.SortedClassLibraryBuilder;
 
 /**
  * @author Thiago da Rosa de Bustamante
@@ -47,8 +62,17 @@ import com.thoughtworks.qdox.library.SortedClassLibraryBuilder;
  */
 public abstract class AbstractToolMojo extends AbstractMojo
 {
-	@Component(role = ClasspathBuilder.class)
-	protected ClasspathBuilder classpathBuilder;
+	@Component(role = ClasspathCache.class)
+	protected ClasspathCache classpathCache;
+
+	@Component(role = SourceTreeCache.class)
+	private SourceTreeCache sourceTreeCache;
+
+	@Component(role = ClassLoaderPool.class)
+	private ClassLoaderPool classLoaderPool;
+
+	@Component
+	private BuildContext buildContext;
 
 	@Parameter(property = "project.build.sourceEncoding", defaultValue="${project.build.sourceEncoding}")
     private String encoding;
@@ -70,11 +94,36 @@ public abstract class AbstractToolMojo extends AbstractMojo
 	 */
 	@Parameter(defaultValue = "${project}", required = true, readonly = true)
 	private MavenProject project;	
+
+	/**
+	 * How the incremental checks find the changed source files. <code>scan</code> walks the source folders. 
+	 * <code>git</code> asks the local git repository for the files changed since the previous build, and only 
+	 * checks those, which is much faster on huge source trees. When the project is not inside a git working tree, 
+	 * or some source folder is outside of it, the source folders are walked.
+	 */
+	@Parameter(property = "crux.changeDetection", defaultValue = "scan")
+	private String changeDetection;
+
+	@Parameter(defaultValue = "${mojoExecution}", readonly = true)
+	private MojoExecution mojoExecution;
+
+	private StateStore stateStore;
+
+	private GitChanges gitChanges;
+	private boolean gitChangesRead;
+
+	private final List<ClassLoaderPool.Lease> classLoaderLeases = new ArrayList<ClassLoaderPool.Lease>();
+
+	/**
+	 * The current build session
+	 */
+	@Parameter(defaultValue = "${session}", required = true, readonly = true)
+	private MavenSession session;
 	
 	public JavaProjectBuilder createJavaProjectBuilder() throws MojoExecutionException
 	{
-		ClassLibraryBuilder libraryBuilder = new SortedClassLibraryBuilder(); //or OrderedClassLibraryBuilder() 
-		libraryBuilder.appendClassLoader(getProjectClassLoader(true));
+		// binary classes are read from their class files, so they are never loaded nor initialized
+		ClassLibraryBuilder libraryBuilder = new ClassFileLibraryBuilder(getProjectClassLoader(true));
 		JavaProjectBuilder builder = new JavaProjectBuilder( libraryBuilder );
 		builder.setEncoding(encoding);
 		for (String sourceRoot : getProject().getCompileSourceRoots())
@@ -85,27 +134,18 @@ public abstract class AbstractToolMojo extends AbstractMojo
 	}
 
 	/**
-	 * Build the classpath for the specified scope
+	 * Build the classpath for the specified scope. Classpaths are built once per build session and shared by all 
+	 * goals.
 	 *
 	 * @param scope Artifact.SCOPE_COMPILE or Artifact.SCOPE_TEST
-	 * @return a collection of dependencies as Files for the specified scope.
+	 * @return an immutable collection of dependencies as Files for the specified scope.
 	 * @throws MojoExecutionException if classPath building failed
 	 */
 	public Collection<File> getClasspath(String scope, boolean addSources) throws MojoExecutionException
 	{
 		try
 		{
-			Collection<File> files = classpathBuilder.buildClasspathList(getProject(), scope, getProjectArtifacts(), isGenerator(), addSources);
-
-			if (getLog().isDebugEnabled())
-			{
-				getLog().debug("Execution classpath :");
-				for (File f : files)
-				{
-					getLog().debug("   " + f.getAbsolutePath());
-				}
-			}
-			return files;
+			return classpathCache.getClasspath(getSession(), getProject(), scope, getProject().getArtifacts(), isGenerator(), addSources);
 		}
 		catch (ClasspathBuilderException e)
 		{
@@ -152,6 +192,11 @@ public abstract class AbstractToolMojo extends AbstractMojo
 		return project;
 	}
 
+	public MavenSession getSession()
+	{
+		return session;
+	}
+
 	public Set<Artifact> getProjectArtifacts()
 	{
 		if (getLog().isDebugEnabled())
@@ -166,14 +211,466 @@ public abstract class AbstractToolMojo extends AbstractMojo
 		return project.getArtifacts();
 	}
 	
-	public ClassLoader getProjectClassLoader(boolean addSources) throws MojoExecutionException
+	/**
+	 * Retrieve a class loader over the compile classpath, shared with the other goals of the session. Classes and 
+	 * resources are only searched on the archives that contain their packages, using an index kept on the state 
+	 * store. The class loader is held by this goal until {@link #releaseProjectClassLoaders()} is called.
+	 */
+	public IndexedClassLoader getProjectClassLoader(boolean addSources) throws MojoExecutionException
 	{
-		return new URLClassLoader(getClassPathURLs(addSources), ClassLoader.getSystemClassLoader());
+		Collection<File> classpath = getClasspath(Artifact.SCOPE_COMPILE, addSources);
+		try
+		{
+			PackageIndex index = new PackageIndex(getStateStore().getNamespace("packages"));
+			ClassLoaderPool.Lease lease = classLoaderPool.acquire(getSession(), classpath, index);
+			synchronized (classLoaderLeases)
+			{
+				classLoaderLeases.add(lease);
+			}
+			index.save();
+			return lease.getClassLoader();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error indexing the project classpath", e);
+		}
+	}
+
+	/**
+	 * Give back the class loaders retrieved by {@link #getProjectClassLoader(boolean)}, so they can be closed. 
+	 * Goals must call it when they finish, even if they failed.
+	 */
+	protected void releaseProjectClassLoaders()
+	{
+		synchronized (classLoaderLeases)
+		{
+			for (ClassLoaderPool.Lease lease : classLoaderLeases)
+			{
+				lease.close();
+			}
+			classLoaderLeases.clear();
+		}
 	}
 
 	public Set<File> getAllFiles(String includes, String excludes, boolean includeResources) throws IOException
 	{
-		Set<File> sourceDirs = new HashSet<File>();
+		Set<File> files = new HashSet<File>();
+		for (SourceTree.FileEntry entry : getAllFileEntries(includes, excludes, includeResources))
+		{
+			files.add(entry.getFile());
+		}
+		return files;
+	}
+
+	/**
+	 * Select the files of the source folders (and optionally of the resource folders) matching the given patterns. 
+	 * The paths of the returned files are canonical.
+	 * 
+	 * @param includes comma separated include patterns
+	 * @param excludes comma separated exclude patterns, added to the default excludes. May be null
+	 * @param includeResources if true, the resource folders are scanned too
+	 * @return the selected files, with their sizes and modification times
+	 * @throws IOException
+	 */
+	public Collection<SourceTree.FileEntry> getAllFileEntries(String includes, String excludes, boolean includeResources) throws IOException
+	{
+		String[] includePatterns = getIncludePatterns(includes);
+		String[] excludePatterns = getExcludePatterns(excludes);
+		Map<String, SourceTree.FileEntry> files = new LinkedHashMap<String, SourceTree.FileEntry>();
+		for (File sourceRoot : getSourceDirs(includeResources))
+		{
+			SourceTree tree = getSourceTree(sourceRoot);
+			if (getLog().isDebugEnabled())
+			{
+				getLog().debug("Scanning source folder: " + tree.getRoot());
+			}
+			for (SourceTree.FileEntry entry : tree.getFiles(includePatterns, excludePatterns))
+			{
+				// source folders may overlap
+				files.put(entry.getFile().getPath(), entry);
+			}
+		}
+		return files.values();
+	}
+
+	/**
+	 * Select the files of the source folders (and optionally of the resource folders) matching the given patterns 
+	 * that were changed since the previous build, as reported by the build environment. Only meaningful on 
+	 * incremental builds (see {@link #isIncrementalBuild()}): on full builds every file is reported. The paths of
+	 * the returned files are canonical.
+	 * 
+	 * @param includes comma separated include patterns
+	 * @param excludes comma separated exclude patterns, added to the default excludes. May be null
+	 * @param includeResources if true, the resource folders are scanned too
+	 * @param deletedPaths receives the paths of the deleted files matching the patterns
+	 * @return the changed files
+	 * @throws IOException
+	 */
+	public Collection<SourceTree.FileEntry> getChangedFileEntries(String includes, String excludes, boolean includeResources, 
+																	Collection<String> deletedPaths) throws IOException
+	{
+		String[] includePatterns = getIncludePatterns(includes);
+		String[] excludePatterns = getExcludePatterns(excludes);
+		Map<String, SourceTree.FileEntry> files = new LinkedHashMap<String, SourceTree.FileEntry>();
+		for (File sourceRoot : getSourceDirs(includeResources))
+		{
+			for (SourceTree.FileEntry entry : getChangedFileEntries(sourceRoot, includePatterns, excludePatterns))
+			{
+				files.put(entry.getFile().getPath(), entry);
+			}
+			deletedPaths.addAll(getDeletedPaths(sourceRoot, includePatterns, excludePatterns));
+		}
+		return files.values();
+	}
+
+	/**
+	 * Select the files of a source folder matching the given patterns that were changed since the previous build.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param includes include patterns
+	 * @param excludes exclude patterns. May be null
+	 * @return the changed files, under the canonical path of the source folder
+	 * @throws IOException
+	 */
+	public List<SourceTree.FileEntry> getChangedFileEntries(File sourceRoot, String[] includes, String[] excludes) throws IOException
+	{
+		List<SourceTree.FileEntry> result = new ArrayList<SourceTree.FileEntry>();
+		if (!sourceRoot.isDirectory())
+		{
+			return result;
+		}
+		File canonicalRoot = sourceRoot.getCanonicalFile();
+		if (!buildContext.isIncremental() && getGitChanges() != null)
+		{
+			if (isScannedFolder(getGitChanges(), sourceRoot))
+			{
+				// git does not report their changes, so all their files are checked
+				return getSourceTree(sourceRoot).getFiles(includes, excludes);
+			}
+			for (String path : getGitChanges().getChangedPaths(canonicalRoot))
+			{
+				if (SourceTree.isSelected(path, includes, excludes))
+				{
+					SourceTree.FileEntry entry = SourceTree.FileEntry.read(new File(canonicalRoot, path), path);
+					if (entry != null)
+					{
+						result.add(entry);
+					}
+				}
+			}
+			return result;
+		}
+		if (!buildContext.hasDelta(sourceRoot))
+		{
+			return result;
+		}
+		Scanner scanner = buildContext.newScanner(sourceRoot, false);
+		scanner.setIncludes(includes);
+		scanner.setExcludes(excludes);
+		scanner.scan();
+		for (String path : scanner.getIncludedFiles())
+		{
+			SourceTree.FileEntry entry = SourceTree.FileEntry.read(new File(canonicalRoot, path), path);
+			if (entry != null)
+			{
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Select the files of a source folder matching the given patterns that were deleted since the previous build.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param includes include patterns
+	 * @param excludes exclude patterns. May be null
+	 * @return the paths of the deleted files, under the canonical path of the source folder
+	 * @throws IOException
+	 */
+	public List<String> getDeletedPaths(File sourceRoot, String[] includes, String[] excludes) throws IOException
+	{
+		List<String> result = new ArrayList<String>();
+		File canonicalRoot = sourceRoot.getCanonicalFile();
+		if (!buildContext.isIncremental() && getGitChanges() != null)
+		{
+			Collection<String> candidates;
+			if (isScannedFolder(getGitChanges(), sourceRoot))
+			{
+				// files seen by the previous build
+				candidates = getRecordedFiles(canonicalRoot);
+			}
+			else
+			{
+				candidates = getGitChanges().getChangedPaths(canonicalRoot);
+			}
+			for (String path : candidates)
+			{
+				File file = new File(canonicalRoot, path);
+				if (SourceTree.isSelected(path, includes, excludes) && !file.exists())
+				{
+					result.add(file.getPath());
+				}
+			}
+			return result;
+		}
+		if (!buildContext.hasDelta(sourceRoot))
+		{
+			return result;
+		}
+		Scanner scanner = buildContext.newDeleteScanner(sourceRoot);
+		scanner.setIncludes(includes);
+		scanner.setExcludes(excludes);
+		scanner.scan();
+		for (String path : scanner.getIncludedFiles())
+		{
+			result.add(new File(canonicalRoot, path).getPath());
+		}
+		return result;
+	}
+
+	/**
+	 * Record the state of the git working tree seen by this goal, so the next build only checks the files changed 
+	 * since now. Must be called when the goal completes successfully. When git is not used, any previous record 
+	 * is discarded, as the goal may have seen changes that git would not report anymore.
+	 */
+	protected void recordChangeDetection()
+	{
+		try
+		{
+			StateStore.Namespace state = getStateStore().getNamespace("vcs");
+			String goal = mojoExecution.getGoal();
+			GitChanges changes = getGitChanges(true);
+			Set<String> recordedFolders = new HashSet<String>();
+			if (changes != null)
+			{
+				state.put(goal + ".head", changes.getHead().getBytes("UTF-8"));
+				state.put(goal + ".dirty", StringUtils.join(changes.getDirtyPaths().iterator(), "\0").getBytes("UTF-8"));
+				for (File sourceRoot : getSourceDirs(true))
+				{
+					if (isScannedFolder(changes, sourceRoot))
+					{
+						File canonicalRoot = sourceRoot.getCanonicalFile();
+						List<String> paths = new ArrayList<String>();
+						if (canonicalRoot.isDirectory())
+						{
+							for (SourceTree.FileEntry entry : getSourceTree(canonicalRoot).getFiles())
+							{
+								paths.add(entry.getRelativePath());
+							}
+						}
+						String key = getRecordedFilesKey(canonicalRoot);
+						state.put(key, StringUtils.join(paths.iterator(), "\0").getBytes("UTF-8"));
+						recordedFolders.add(key);
+					}
+				}
+			}
+			else
+			{
+				state.remove(goal + ".head");
+				state.remove(goal + ".dirty");
+			}
+			for (String key : state.keys())
+			{
+				if (key.startsWith(goal + ".files:") && !recordedFolders.contains(key))
+				{
+					state.remove(key);
+				}
+			}
+			state.commit();
+		}
+		catch (IOException e)
+		{
+			getLog().warn("Failed to record the changed files state: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve the files changed since the previous build of this goal, reported by git.
+	 * 
+	 * @return the changes, or null if git is not used or the changes since the previous build are not known
+	 */
+	private GitChanges getGitChanges()
+	{
+		return getGitChanges(false);
+	}
+
+	private synchronized GitChanges getGitChanges(boolean allowUnknownPrevious)
+	{
+		if (!gitChangesRead)
+		{
+			gitChangesRead = true;
+			gitChanges = readGitChanges();
+		}
+		if (gitChanges != null && !allowUnknownPrevious && !gitChanges.hasPreviousBuild())
+		{
+			return null;
+		}
+		return gitChanges;
+	}
+
+	private GitChanges readGitChanges()
+	{
+		if (!"git".equals(changeDetection))
+		{
+			if (!"scan".equals(changeDetection))
+			{
+				getLog().warn("Unknown change detection [" + changeDetection + "]. Using [scan].");
+			}
+			return null;
+		}
+		try
+		{
+			StateStore.Namespace state = getStateStore().getNamespace("vcs");
+			String goal = mojoExecution.getGoal();
+			byte[] head = state.get(goal + ".head");
+			byte[] dirty = state.get(goal + ".dirty");
+			List<String> dirtyPaths = new ArrayList<String>();
+			if (dirty != null && dirty.length > 0)
+			{
+				dirtyPaths.addAll(Arrays.asList(new String(dirty, "UTF-8").split("\0")));
+			}
+			GitChanges changes = GitChanges.read(getProject().getBasedir(), (head == null) ? null : new String(head, "UTF-8"), dirtyPaths);
+			if (changes == null)
+			{
+				getLog().info("Project is not inside a git working tree. Source folders will be scanned.");
+				return null;
+			}
+			for (File sourceRoot : getSourceDirs(true))
+			{
+				if (sourceRoot.exists() && !isInsideBuildDirectory(sourceRoot) && !changes.contains(sourceRoot))
+				{
+					getLog().info("Source folder " + sourceRoot + " is outside the git working tree. Source folders will be scanned.");
+					return null;
+				}
+			}
+			if (changes.hasPreviousBuild() && !hasRecordedFiles(changes))
+			{
+				// the deleted files of the scanned folders are not known
+				changes = GitChanges.read(getProject().getBasedir(), null, dirtyPaths);
+			}
+			if (getLog().isDebugEnabled())
+			{
+				getLog().debug("Git working tree: " + changes.getRepositoryRoot() + " at " + changes.getHead() 
+					+ (changes.hasPreviousBuild() ? "" : ". No previous build recorded"));
+			}
+			return changes;
+		}
+		catch (IOException e)
+		{
+			getLog().warn("Failed to read the changed files from git: " + e.getMessage() + ". Source folders will be scanned.");
+			return null;
+		}
+	}
+
+	/**
+	 * Check if the changes of a source folder must be found by walking it, as git does not report them. Those are 
+	 * the folders inside the build directory and the ones containing files ignored by git. The files of those 
+	 * folders are recorded on each build, to find the deleted ones.
+	 */
+	private boolean isScannedFolder(GitChanges changes, File sourceRoot) throws IOException
+	{
+		if (isInsideBuildDirectory(sourceRoot))
+		{
+			return true;
+		}
+		if (!sourceRoot.isDirectory())
+		{
+			return false;
+		}
+		for (String path : changes.getIgnoredPaths(sourceRoot))
+		{
+			if (SourceTree.isSelected(path, new String[]{"**"}, FileUtils.getDefaultExcludes()))
+			{
+				if (getLog().isDebugEnabled())
+				{
+					getLog().debug("Source folder " + sourceRoot + " contains files ignored by git, like " + path + ". It will be scanned.");
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the files of all scanned folders were recorded by the previous build.
+	 */
+	private boolean hasRecordedFiles(GitChanges changes) throws IOException
+	{
+		StateStore.Namespace state = getStateStore().getNamespace("vcs");
+		for (File sourceRoot : getSourceDirs(true))
+		{
+			if (sourceRoot.isDirectory() && isScannedFolder(changes, sourceRoot) 
+				&& state.get(getRecordedFilesKey(sourceRoot.getCanonicalFile())) == null)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Retrieve the files of a scanned folder recorded by the previous build.
+	 * 
+	 * @param canonicalRoot canonical path of the folder
+	 * @return paths relative to the folder
+	 */
+	private List<String> getRecordedFiles(File canonicalRoot) throws IOException
+	{
+		byte[] files = getStateStore().getNamespace("vcs").get(getRecordedFilesKey(canonicalRoot));
+		List<String> result = new ArrayList<String>();
+		if (files != null && files.length > 0)
+		{
+			result.addAll(Arrays.asList(new String(files, "UTF-8").split("\0")));
+		}
+		return result;
+	}
+
+	private String getRecordedFilesKey(File canonicalRoot)
+	{
+		return mojoExecution.getGoal() + ".files:" + canonicalRoot.getPath();
+	}
+
+	private boolean isInsideBuildDirectory(File file)
+	{
+		File buildDir = new File(getProject().getBuild().getDirectory()).getAbsoluteFile();
+		return file.getAbsolutePath().startsWith(buildDir.getPath() + File.separator);
+	}
+
+	/**
+	 * The build environment. Inside an IDE it reports the files changed since the previous build and keeps the 
+	 * workspace in sync with the files written by the goals.
+	 */
+	public BuildContext getBuildContext()
+	{
+		return buildContext;
+	}
+
+	/**
+	 * Store for the incremental state of the goals, under <code>target/crux-plugin/state</code>.
+	 */
+	public synchronized StateStore getStateStore()
+	{
+		if (stateStore == null)
+		{
+			stateStore = new StateStore(new File(getProject().getBuild().getDirectory(), "crux-plugin/state"));
+		}
+		return stateStore;
+	}
+
+	/**
+	 * Check if only the changed files need to be checked, because the IDE or git reports them. The changed files 
+	 * are retrieved with {@link #getChangedFileEntries(File, String[], String[])} and 
+	 * {@link #getDeletedPaths(File, String[], String[])}.
+	 */
+	public boolean isIncrementalBuild()
+	{
+		return buildContext.isIncremental() || getGitChanges() != null;
+	}
+
+	private Set<File> getSourceDirs(boolean includeResources)
+	{
+		Set<File> sourceDirs = new LinkedHashSet<File>();
 		final java.util.List<String> sourceRoots = getProject().getCompileSourceRoots();
 		if (sourceRoots != null)
 		{
@@ -195,21 +692,40 @@ public abstract class AbstractToolMojo extends AbstractMojo
 			}
 		}
 
-		Set<File> files = new HashSet<File>();
-		for (File sourceRoot : sourceDirs)
+		return sourceDirs;
+	}
+
+	private static String[] getIncludePatterns(String includes)
+	{
+		return StringUtils.split(includes, ",");
+	}
+
+	private static String[] getExcludePatterns(String excludes)
+	{
+		List<String> excludePatterns = new ArrayList<String>(Arrays.asList(FileUtils.getDefaultExcludes()));
+		if (excludes != null)
 		{
-			if (getLog().isDebugEnabled())
-			{
-				getLog().debug("Scanning source folder: " + sourceRoot.getCanonicalPath());
-			}
-			@SuppressWarnings("unchecked")
-			List<File> dirFiles = FileUtils.getFiles(sourceRoot, includes, excludes);
-			if (dirFiles != null)
-			{
-				files.addAll(dirFiles);
-			}
+			excludePatterns.addAll(Arrays.asList(StringUtils.split(excludes, ",")));
 		}
-		return files;
+		return excludePatterns.toArray(new String[excludePatterns.size()]);
+	}
+
+	/**
+	 * Retrieve the snapshot of a source folder. Folders of the project source tree are walked once per build 
+	 * session and shared by all goals. Folders inside the build directory (like the generated sources folders) 
+	 * are modified by the build, so they are walked on every request.
+	 * 
+	 * @param sourceRoot source folder
+	 * @return the snapshot
+	 * @throws IOException
+	 */
+	public SourceTree getSourceTree(File sourceRoot) throws IOException
+	{
+		if (isInsideBuildDirectory(sourceRoot))
+		{
+			return SourceTree.scan(sourceRoot);
+		}
+		return sourceTreeCache.getTree(getSession(), sourceRoot);
 	}
 	
 	/**
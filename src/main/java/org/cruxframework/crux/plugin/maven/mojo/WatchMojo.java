@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015 cruxframework.org.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.cruxframework.crux.plugin.maven.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.lifecycle.LifecycleExecutor;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.BuildPluginManager;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.StringUtils;
+import org.codehaus.plexus.util.xml.Xpp3Dom;
+import org.cruxframework.crux.plugin.maven.ClassLoaderPool;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTreeCache;
+
+/**
+ * Keep running the Crux goals while the project sources change. The project and its dependencies are resolved
+ * once, and the goals run inside the same JVM, reusing the compiler, the classpath analysis and the source
+ * folders snapshots kept by the plugin components. Changes on the source and resource folders are collected
+ * until no new change arrives for the debounce interval, and then only the goals affected by the changed
+ * files run.
+ * <p>
+ * Goals run with the plugin configuration of the project, including the configuration of the executions
+ * that declare them. Stop the goal with Ctrl+C.
+ * <p>
+ * Only one project is watched: on a multi-module build, select the module with <code>-pl &lt;module&gt;</code>.
+ *
+ * @author Thiago da Rosa de Bustamante
+ */
+@Mojo(name = "watch", requiresDependencyResolution = ResolutionScope.COMPILE)
+public class WatchMojo extends AbstractToolMojo
+{
+	private static final Map<String, String[]> GOAL_TRIGGERS = new HashMap<String, String[]>();
+	static
+	{
+		GOAL_TRIGGERS.put("apt", new String[]{".java"});
+		GOAL_TRIGGERS.put("process-crux-resources", new String[]{".crux.xml"});
+		GOAL_TRIGGERS.put("generate-xsds", new String[]{".java", ".template.xml"});
+	}
+
+	/**
+	 * Comma separated list of the goals run when the sources change.
+	 */
+	@Parameter(property = "watch.goals", defaultValue = "apt,process-crux-resources,generate-xsds")
+	private String goals;
+
+	/**
+	 * Time, in milliseconds, without new changes before the goals run. Bursts of changes (like a version control
+	 * update or a refactoring) are processed at once.
+	 */
+	@Parameter(property = "watch.debounce", defaultValue = "300")
+	private long debounce;
+
+	@Parameter(defaultValue = "${plugin}", readonly = true)
+	private PluginDescriptor plugin;
+
+	@Component
+	private LifecycleExecutor lifecycleExecutor;
+
+	@Component
+	private BuildPluginManager pluginManager;
+
+	@Component(role = SourceTreeCache.class)
+	private SourceTreeCache sourceTrees;
+
+	@Component(role = ClassLoaderPool.class)
+	private ClassLoaderPool classLoaders;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException
+	{
+		if ("pom".equals(getProject().getPackaging()))
+		{
+			getLog().info("Watch is skipped");
+			return;
+		}
+		checkSingleModule();
+
+		Map<String, MojoExecution> executions = getExecutions();
+		runGoals(executions.values());
+
+		List<File> roots = getWatchedRoots();
+		WatchService watcher;
+		try
+		{
+			watcher = FileSystems.getDefault().newWatchService();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error creating the file system watcher.", e);
+		}
+		try
+		{
+			Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+			for (File root : roots)
+			{
+				register(watcher, root.toPath(), keys);
+			}
+			getLog().info("Watching " + roots.size() + " source folders for changes. Press Ctrl+C to stop.");
+			while (true)
+			{
+				WatchKey key = watcher.take();
+				long start = System.nanoTime();
+				Set<Path> changes = new LinkedHashSet<Path>();
+				boolean overflow = false;
+				while (key != null)
+				{
+					overflow |= collectChanges(watcher, key, keys, changes);
+					key = watcher.poll(debounce, TimeUnit.MILLISECONDS);
+				}
+				long quietSince = System.nanoTime();
+				List<MojoExecution> affected = getAffectedGoals(executions, changes, overflow);
+				invalidateSnapshots(roots, changes, overflow);
+				if (affected.isEmpty())
+				{
+					getLog().debug(changes.size() + " changed files ignored.");
+					continue;
+				}
+				// classes compiled since the previous run must not be served by the already loaded ones
+				classLoaders.invalidate();
+				runGoals(affected);
+				long end = System.nanoTime();
+				getLog().info((overflow ? "Many" : String.valueOf(changes.size())) + " changed files processed in "
+					+ TimeUnit.NANOSECONDS.toMillis(end - start) + "ms (" + TimeUnit.NANOSECONDS.toMillis(end - quietSince)
+					+ "ms after the last change).");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Error watching the source folders.", e);
+		}
+		finally
+		{
+			try
+			{
+				watcher.close();
+			}
+			catch (IOException e)
+			{
+				getLog().debug("Error closing the file system watcher.", e);
+			}
+		}
+	}
+
+	/**
+	 * The goal never ends, so the other modules of the reactor would never be built nor watched.
+	 */
+	private void checkSingleModule() throws MojoFailureException
+	{
+		List<String> modules = new ArrayList<String>();
+		for (MavenProject project : getSession().getProjects())
+		{
+			if (!"pom".equals(project.getPackaging()))
+			{
+				modules.add(project.getArtifactId());
+			}
+		}
+		if (modules.size() > 1)
+		{
+			throw new MojoFailureException("The watch goal runs on a single module, but the build contains the modules " 
+				+ modules + ". Select the module to watch with -pl <module>, like: mvn crux:watch -pl " + modules.get(0) 
+				+ " (after installing the modules it depends on)");
+		}
+	}
+
+	/**
+	 * Compute the executions of the watched goals once, with the project configuration.
+	 */
+	private Map<String, MojoExecution> getExecutions() throws MojoExecutionException
+	{
+		Map<String, MojoExecution> executions = new LinkedHashMap<String, MojoExecution>();
+		String pluginKey = plugin.getGroupId() + ":" + plugin.getArtifactId() + ":" + plugin.getVersion();
+		for (String goal : StringUtils.split(goals, ","))
+		{
+			goal = goal.trim();
+			try
+			{
+				for (MojoExecution execution : lifecycleExecutor.calculateExecutionPlan(getSession(), pluginKey + ":" + goal).getMojoExecutions())
+				{
+					applyExecutionConfiguration(execution);
+					executions.put(goal, execution);
+				}
+			}
+			catch (Exception e)
+			{
+				throw new MojoExecutionException("Error resolving goal " + goal, e);
+			}
+		}
+		return executions;
+	}
+
+	/**
+	 * Goals invoked directly only receive the plugin level configuration. Add the configuration of the
+	 * project executions that declare the goal.
+	 */
+	private void applyExecutionConfiguration(MojoExecution execution)
+	{
+		Plugin projectPlugin = getProject().getBuild().getPluginsAsMap().get(plugin.getPluginLookupKey());
+		Xpp3Dom configuration = execution.getConfiguration();
+		if (projectPlugin == null || configuration == null)
+		{
+			return;
+		}
+		for (PluginExecution pluginExecution : projectPlugin.getExecutions())
+		{
+			Xpp3Dom executionConfiguration = (Xpp3Dom) pluginExecution.getConfiguration();
+			if (executionConfiguration == null || !pluginExecution.getGoals().contains(execution.getGoal()))
+			{
+				continue;
+			}
+			for (Xpp3Dom parameter : executionConfiguration.getChildren())
+			{
+				if (execution.getMojoDescriptor().getParameterMap().containsKey(parameter.getName()))
+				{
+					for (int i = configuration.getChildCount() - 1; i >= 0; i--)
+					{
+						if (configuration.getChild(i).getName().equals(parameter.getName()))
+						{
+							configuration.removeChild(i);
+						}
+					}
+					configuration.addChild(new Xpp3Dom(parameter));
+				}
+			}
+		}
+	}
+
+	private void runGoals(Collection<MojoExecution> executions)
+	{
+		for (MojoExecution execution : executions)
+		{
+			try
+			{
+				pluginManager.executeMojo(getSession(), execution);
+			}
+			catch (Exception e)
+			{
+				// keep watching. The next change may fix the problem
+				getLog().error("Goal " + execution.getGoal() + " failed: " + e.getMessage(), getLog().isDebugEnabled() ? e : null);
+			}
+		}
+	}
+
+	/**
+	 * The project source and resource folders. Folders inside the build directory are written by the goals
+	 * themselves, so they are not watched.
+	 */
+	private List<File> getWatchedRoots()
+	{
+		String buildDir = new File(getProject().getBuild().getDirectory()).getAbsolutePath() + File.separator;
+		Set<String> paths = new LinkedHashSet<String>(getProject().getCompileSourceRoots());
+		for (Resource resource : getProject().getResources())
+		{
+			paths.add(resource.getDirectory());
+		}
+		List<File> roots = new ArrayList<File>();
+		for (String path : paths)
+		{
+			File root = new File(path).getAbsoluteFile();
+			if (root.isDirectory() && !root.getPath().startsWith(buildDir))
+			{
+				roots.add(root);
+			}
+		}
+		return roots;
+	}
+
+	private void register(WatchService watcher, Path dir, final Map<WatchKey, Path> keys) throws IOException
+	{
+		final WatchService service = watcher;
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+											StandardWatchEventKinds.ENTRY_MODIFY);
+				keys.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Collect the changes reported by a watch key, registering new folders.
+	 * @return true if events were lost
+	 */
+	private boolean collectChanges(WatchService watcher, WatchKey key, Map<WatchKey, Path> keys, Set<Path> changes) throws IOException
+	{
+		boolean overflow = false;
+		Path dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null)
+			{
+				overflow = true;
+				continue;
+			}
+			Path changed = dir.resolve((Path) event.context());
+			changes.add(changed);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed))
+			{
+				register(watcher, changed, keys);
+				// files may be created before the folder is registered
+				overflow = true;
+			}
+		}
+		if (!key.reset())
+		{
+			keys.remove(key);
+		}
+		return overflow;
+	}
+
+	private List<MojoExecution> getAffectedGoals(Map<String, MojoExecution> executions, Set<Path> changes, boolean overflow)
+	{
+		List<MojoExecution> result = new ArrayList<MojoExecution>();
+		for (Map.Entry<String, MojoExecution> execution : executions.entrySet())
+		{
+			if (overflow || isAffected(execution.getKey(), changes))
+			{
+				result.add(execution.getValue());
+			}
+		}
+		return result;
+	}
+
+	private boolean isAffected(String goal, Set<Path> changes)
+	{
+		String[] triggers = GOAL_TRIGGERS.get(goal);
+		for (Path change : changes)
+		{
+			String name = change.getFileName().toString();
+			if (triggers == null)
+			{
+				return true;
+			}
+			for (String trigger : triggers)
+			{
+				if (name.endsWith(trigger))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the snapshots of the folders with changes, so the goals see the current files.
+	 */
+	private void invalidateSnapshots(List<File> roots, Set<Path> changes, boolean overflow)
+	{
+		Set<File> changedRoots = new HashSet<File>();
+		for (File root : roots)
+		{
+			if (overflow)
+			{
+				changedRoots.add(root);
+				continue;
+			}
+			for (Path change : changes)
+			{
+				if (change.startsWith(root.toPath()))
+				{
+					changedRoots.add(root);
+					break;
+				}
+			}
+		}
+		for (File root : changedRoots)
+		{
+			sourceTrees.invalidate(root);
+		}
+	}
+}
@@ -17,12 +17,15 @@ package org.cruxframework.crux.plugin.maven.mojo.resources;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
-import org.codehaus.plexus.util.DirectoryScanner;
-import org.codehaus.plexus.util.Scanner;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTree;
+import org.cruxframework.crux.plugin.maven.incremental.StateStore;
 import org.cruxframework.crux.plugin.maven.mojo.AbstractResourcesMojo;
+import org.sonatype.plexus.build.incremental.BuildContext;
 
 /**
  * @author Thiago da Rosa de Bustamante
@@ -58,13 +61,88 @@ public abstract class AbstractResourcesHandler
 		return (T)resourcesMojo;
 	}
 	
-	protected Scanner getScanner(File sourceRoot) throws IOException
+	/**
+	 * Select the files of the given source folder that match any of the include patterns.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param includes include patterns
+	 * @return selected files
+	 * @throws IOException
+	 */
+	protected List<SourceTree.FileEntry> getFiles(File sourceRoot, String[] includes) throws IOException
 	{
-		DirectoryScanner scanner = new DirectoryScanner();
-		scanner.setBasedir(sourceRoot.getCanonicalPath());
-		return scanner;
+		return resourcesMojo.getSourceTree(sourceRoot).getFiles(includes, null);
 	}
 	
+	/**
+	 * Select the files of the given source folder that match any of the include patterns and were changed since
+	 * the previous build of the IDE.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param includes include patterns
+	 * @return changed files
+	 * @throws IOException
+	 */
+	protected List<SourceTree.FileEntry> getChangedFiles(File sourceRoot, String[] includes) throws IOException
+	{
+		return resourcesMojo.getChangedFileEntries(sourceRoot, includes, null);
+	}
+
+	/**
+	 * Select the files of the given source folder that match any of the include patterns and were deleted since
+	 * the previous build of the IDE.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param includes include patterns
+	 * @return paths of the deleted files, relative to the source folder
+	 * @throws IOException
+	 */
+	protected List<String> getDeletedFiles(File sourceRoot, String[] includes) throws IOException
+	{
+		String prefix = sourceRoot.getCanonicalPath() + File.separator;
+		List<String> result = new ArrayList<String>();
+		for (String path : resourcesMojo.getDeletedPaths(sourceRoot, includes, null))
+		{
+			result.add(path.substring(prefix.length()));
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the namespace of the state store where this handler keeps its incremental state.
+	 */
+	protected StateStore.Namespace getState(String namespace) throws IOException
+	{
+		return resourcesMojo.getStateStore().getNamespace(namespace);
+	}
+
+	/**
+	 * Check if the source file did not change since it was recorded by {@link #recordInput}.
+	 */
+	protected boolean isUptodate(StateStore.Namespace state, SourceTree.FileEntry source)
+	{
+		long[] recorded = state.getLongs(source.getFile().getPath());
+		return recorded != null && recorded.length == 2 && recorded[0] == source.getSize() && recorded[1] == source.getLastModified();
+	}
+
+	/**
+	 * Record the size and the modification time of a source file, after its outputs were written.
+	 */
+	protected void recordInput(StateStore.Namespace state, SourceTree.FileEntry source)
+	{
+		state.putLongs(source.getFile().getPath(), source.getSize(), source.getLastModified());
+	}
+
+	protected BuildContext getBuildContext()
+	{
+		return resourcesMojo.getBuildContext();
+	}
+
+	protected boolean isIncrementalBuild()
+	{
+		return resourcesMojo.isIncrementalBuild();
+	}
+
 	protected boolean isUptodate(File target, File source)
 	{
 		return getResourcesMojo().isUptodate(target, source);
@@ -81,6 +81,7 @@ public class CruxResourcesMojo extends AbstractResourcesMojo
 
 		PageResources pageResources = new PageResources(this); 
 		pageResources.generatePages();
+		recordChangeDetection();
 	}
 
 	@Override
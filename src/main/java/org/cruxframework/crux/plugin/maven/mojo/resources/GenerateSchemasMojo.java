@@ -73,8 +73,16 @@ public class GenerateSchemasMojo extends AbstractResourcesMojo
 
 //		setupGenerateDirectory();
 
-		SchemaResources schemaResources = new SchemaResources(this);
-		schemaResources.generateMapping();
+		try
+		{
+			SchemaResources schemaResources = new SchemaResources(this);
+			schemaResources.generateMapping();
+			recordChangeDetection();
+		}
+		finally
+		{
+			releaseProjectClassLoaders();
+		}
 	}
 
 	public File getXsdOutputDir()
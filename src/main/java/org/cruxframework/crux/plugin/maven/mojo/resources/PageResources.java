@@ -17,14 +17,16 @@ package org.cruxframework.crux.plugin.maven.mojo.resources;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.plexus.util.Scanner;
 import org.cruxframework.crux.core.declarativeui.ViewProcessor;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTree;
+import org.cruxframework.crux.plugin.maven.incremental.StateStore;
 import org.cruxframework.crux.plugin.maven.view.MojoViewLoader;
 import org.w3c.dom.Document;
 
@@ -41,32 +43,56 @@ public class PageResources extends AbstractResourcesHandler
 	
 	protected void generatePages() throws MojoExecutionException
 	{
-		List<String> sourceRoots = getProject().getCompileSourceRoots();
-		for (String sourceRoot : sourceRoots)
+		StateStore.Namespace state;
+		try
 		{
-			try
-			{
-				scanAndGeneratePages(new File(sourceRoot));
-			}
-			catch (Exception e)
+			state = getState("pages");
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Failed to read the pages state", e);
+		}
+		try
+		{
+			List<String> sourceRoots = getProject().getCompileSourceRoots();
+			for (String sourceRoot : sourceRoots)
 			{
-				throw new MojoExecutionException("Failed to generate HTML file", e);
+				try
+				{
+					scanAndGeneratePages(new File(sourceRoot), state);
+				}
+				catch (Exception e)
+				{
+					throw new MojoExecutionException("Failed to generate HTML file", e);
+				}
 			}
+			
+			List<Resource> resources = getProject().getResources();
+			for (Resource resource : resources)
+	        {
+				try
+				{
+					scanAndGeneratePages(new File(resource.getDirectory()), state);
+				}
+				catch (Exception e)
+				{
+					throw new MojoExecutionException("Failed to generate HTML file", e);
+				}
+		        
+	        }
 		}
-		
-		List<Resource> resources = getProject().getResources();
-		for (Resource resource : resources)
-        {
+		finally
+		{
+			// keep the pages already generated, even if the generation failed
 			try
 			{
-				scanAndGeneratePages(new File(resource.getDirectory()));
+				state.commit();
 			}
-			catch (Exception e)
+			catch (IOException e)
 			{
-				throw new MojoExecutionException("Failed to generate HTML file", e);
+				getLog().warn("Failed to write the pages state: " + e.getMessage());
 			}
-	        
-        }
+		}
 	}
 
 	protected String getModuleBaseFolder()
@@ -91,9 +117,15 @@ public class PageResources extends AbstractResourcesHandler
 	{
 		ViewProcessor viewProcessor = new ViewProcessor(new MojoViewLoader());
 		Document view = viewProcessor.getView(new FileInputStream(sourceFile), viewId, null);
-		FileOutputStream out = new FileOutputStream(targetFile);
-		viewProcessor.generateHTML(viewId, null, view, out);
-		out.close();
+		OutputStream out = getBuildContext().newFileOutputStream(targetFile);
+		try
+		{
+			viewProcessor.generateHTML(viewId, null, view, out);
+		}
+		finally
+		{
+			out.close();
+		}
 		return true;
 	}
 
@@ -121,30 +153,51 @@ public class PageResources extends AbstractResourcesHandler
 		return null;
     }
 
-	private void scanAndGeneratePages(File sourceRoot) throws Exception
+	/**
+	 * Remove the pages generated for the views deleted since the previous build of the IDE.
+	 */
+	private void deletePages(File sourceRoot, String[] includes, StateStore.Namespace state) throws Exception
+	{
+		for (String source : getDeletedFiles(sourceRoot, includes))
+		{
+			state.remove(new File(sourceRoot.getCanonicalFile(), source).getPath());
+			File targetFile = getTargetFile(getViewId(source));
+			if (targetFile != null && targetFile.delete())
+			{
+				getLog().info("Removing HTML page of deleted file " + source);
+				getBuildContext().refresh(targetFile);
+			}
+		}
+	}
+
+	private void scanAndGeneratePages(File sourceRoot, StateStore.Namespace state) throws Exception
 	{
 		if (getLog().isDebugEnabled())
 		{
 			getLog().debug("Scanning source folder: "+sourceRoot.getCanonicalPath());
 		}
 
-		
-		Scanner scanner = getScanner(sourceRoot);
-		scanner.setIncludes(new String[] { "**/*.crux.xml" });
-		scanner.scan();
-		String[] sources = scanner.getIncludedFiles();
-		if (sources.length == 0)
+		String[] includes = new String[] { "**/*.crux.xml" };
+		List<SourceTree.FileEntry> sources;
+		if (isIncrementalBuild())
+		{
+			sources = getChangedFiles(sourceRoot, includes);
+			deletePages(sourceRoot, includes, state);
+		}
+		else
 		{
-			return;
+			sources = getFiles(sourceRoot, includes);
 		}
-		for (String source : sources)
+		for (SourceTree.FileEntry entry : sources)
 		{
-			File sourceFile = new File(sourceRoot, source);
+			String source = entry.getRelativePath();
+			File sourceFile = entry.getFile();
 			String viewId = getViewId(source);
 			if (!StringUtils.isEmpty(viewId))
 			{
 				File targetFile = getTargetFile(viewId);
-				if (isUptodate(targetFile, sourceFile))
+				// the source must be unchanged since its page was completely written
+				if (targetFile.exists() && isUptodate(state, entry))
 				{
 					getLog().debug(targetFile.getAbsolutePath() + " is up to date. Generation skipped");
 					continue;
@@ -153,6 +206,7 @@ public class PageResources extends AbstractResourcesHandler
 				getLog().info("Generating HTML page for file " + source);
 				targetFile.getParentFile().mkdirs();
 				generateHTMLPage(viewId, sourceFile, targetFile);
+				recordInput(state, entry);
 			}
 		}
 	}
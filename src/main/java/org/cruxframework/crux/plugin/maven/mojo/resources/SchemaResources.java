@@ -18,15 +18,20 @@ package org.cruxframework.crux.plugin.maven.mojo.resources;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.plexus.util.Scanner;
 import org.codehaus.plexus.util.cli.StreamConsumer;
 import org.cruxframework.crux.core.rebind.screen.widget.WidgetCreator;
 import org.cruxframework.crux.core.rebind.screen.widget.declarative.DeclarativeFactory;
+import org.cruxframework.crux.plugin.maven.incremental.SourceTree;
+import org.cruxframework.crux.plugin.maven.incremental.StateStore;
 import org.cruxframework.crux.plugin.maven.shell.JavaCommand;
 import org.cruxframework.crux.plugin.maven.shell.JavaCommandException;
 import org.cruxframework.crux.tools.schema.SchemaGenerator;
@@ -53,20 +58,27 @@ public class SchemaResources extends AbstractResourcesHandler
 	
 	public void generateMapping() throws MojoExecutionException
 	{
-		boolean checkFileExists = getCheckFile().exists();
-		if (!checkFileExists)
+		StateStore.Namespace state;
+		try
 		{
-			generateSchemas();
-			return;
+			state = getState("schemas");
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Failed to read the schemas state", e);
 		}
+		// incremental builds only see the changed inputs
+		boolean allInputs = !isIncrementalBuild();
+		Map<String, SourceTree.FileEntry> inputs = new HashMap<String, SourceTree.FileEntry>();
+		Set<String> deletedInputs = new HashSet<String>();
 
-		boolean hasChanges = false;
+		boolean hasChanges = !getCheckFile().exists();
 		List<String> sourceRoots = getProject().getCompileSourceRoots();
 		for (String sourceRoot : sourceRoots)
 		{
 			try
 			{
-				if (hasChanges(new File(sourceRoot)))
+				if (hasChanges(new File(sourceRoot), state, inputs, deletedInputs, !hasChanges))
 				{
 					hasChanges = true;
 				}
@@ -82,7 +94,7 @@ public class SchemaResources extends AbstractResourcesHandler
 		{
 			try
 			{
-				if (hasChanges(new File(resource.getDirectory())))
+				if (hasChanges(new File(resource.getDirectory()), state, inputs, deletedInputs, !hasChanges))
 				{
 					hasChanges = true;
 				}
@@ -93,10 +105,15 @@ public class SchemaResources extends AbstractResourcesHandler
 			}
 		}
 
+		if (!hasChanges && allInputs)
+		{
+			hasChanges = hasDeletedInputs(state, inputs);
+		}
 		if (hasChanges)
 		{
 			generateSchemas();
 		}
+		recordInputs(state, inputs, deletedInputs, allInputs);
 	}
 	
 	protected void generateSchemas() throws MojoExecutionException
@@ -124,6 +141,8 @@ public class SchemaResources extends AbstractResourcesHandler
 				}
 			})
 			   .execute();
+			// the schemas are written by another process
+			getBuildContext().refresh(getXsdOutputDir());
 		}
 		catch (JavaCommandException e)
 		{
@@ -172,33 +191,106 @@ public class SchemaResources extends AbstractResourcesHandler
 	    return resourcesMojo.getXsdOutputDir();
     }
 
-	protected boolean hasChanges(File sourceRoot) throws Exception
+	/**
+	 * Check if the source folder has changed files that affect the schemas.
+	 * 
+	 * @param sourceRoot source folder
+	 * @param state inputs recorded when the schemas were generated
+	 * @param inputs receives the current inputs. Only the changed ones on incremental builds
+	 * @param deletedInputs receives the deleted inputs. Only found on incremental builds
+	 * @param checkChanges if false, only the current inputs are collected
+	 */
+	protected boolean hasChanges(File sourceRoot, StateStore.Namespace state, Map<String, SourceTree.FileEntry> inputs, 
+								Set<String> deletedInputs, boolean checkChanges) throws Exception
 	{
-		Scanner scanner = getScanner(sourceRoot);
-		scanner.setIncludes(getScannerExpressions());
-		scanner.scan();
-		String[] includedSources = scanner.getIncludedFiles();
-		if (includedSources.length == 0)
+		boolean hasChanges = false;
+		List<SourceTree.FileEntry> includedSources;
+		if (isIncrementalBuild())
+		{
+			File canonicalRoot = sourceRoot.getCanonicalFile();
+			for (String source : getDeletedFiles(sourceRoot, getScannerExpressions()))
+			{
+				String path = new File(canonicalRoot, source).getPath();
+				deletedInputs.add(path);
+				// deleted classes can not be inspected anymore
+				if (checkChanges && !hasChanges && state.get(path) != null)
+				{
+					if (getLog().isDebugEnabled())
+					{
+						getLog().debug("Deleted file found: " + path);
+					}
+					hasChanges = true;
+				}
+			}
+			includedSources = getChangedFiles(sourceRoot, getScannerExpressions());
+		}
+		else
 		{
-			return false;
+			includedSources = getFiles(sourceRoot, getScannerExpressions());
 		}
-		boolean hasChanges = false;
-		for (String source : includedSources)
+		for (SourceTree.FileEntry entry : includedSources)
 		{
-			File sourceFile = new File(sourceRoot, source);
-			if (!isUptodate(getCheckFile(), sourceFile) && isElegibleForGeneration(source))
+			inputs.put(entry.getFile().getPath(), entry);
+			if (checkChanges && !hasChanges && !isUptodate(state, entry) && isElegibleForGeneration(entry.getRelativePath()))
 			{
 				if (getLog().isDebugEnabled())
 				{
-					getLog().debug("Modified file found: " + sourceFile.getCanonicalPath() + " is newer than " + getCheckFile().getCanonicalPath());
+					getLog().debug("Modified file found: " + entry.getFile().getPath());
 				}
 				hasChanges = true;
-				break;
 			}
 		}
 		return hasChanges;
 	}
 
+	/**
+	 * Deleted classes can not be inspected anymore, so any deleted input requires a new generation.
+	 */
+	private boolean hasDeletedInputs(StateStore.Namespace state, Map<String, SourceTree.FileEntry> inputs)
+	{
+		for (String path : state.keys())
+		{
+			if (!inputs.containsKey(path))
+			{
+				if (getLog().isDebugEnabled())
+				{
+					getLog().debug("Deleted file found: " + path);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record the inputs of the current schemas. Only called after the schemas are completely written, so an 
+	 * interrupted generation is run again by the next build. On incremental builds, only the changed inputs 
+	 * are updated.
+	 */
+	private void recordInputs(StateStore.Namespace state, Map<String, SourceTree.FileEntry> inputs, Set<String> deletedInputs, 
+							boolean allInputs) throws MojoExecutionException
+	{
+		for (String path : allInputs ? state.keys() : deletedInputs)
+		{
+			if (!inputs.containsKey(path))
+			{
+				state.remove(path);
+			}
+		}
+		for (SourceTree.FileEntry entry : inputs.values())
+		{
+			recordInput(state, entry);
+		}
+		try
+		{
+			state.commit();
+		}
+		catch (IOException e)
+		{
+			throw new MojoExecutionException("Failed to write the schemas state", e);
+		}
+	}
+
 	protected boolean isElegibleForGeneration(String sourceFile) throws MojoExecutionException
 	{
 		if (sourceFile.endsWith(".template.xml"))
@@ -19,13 +19,28 @@ package org.cruxframework.crux.plugin.maven.shell;
  * under the License.
  */
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.util.Os;
@@ -41,6 +56,29 @@ import org.codehaus.plexus.util.cli.StreamConsumer;
  */
 public class JavaCommand
 {
+	/**
+	 * Pass the classpath on the command line.
+	 */
+	public static final String LAUNCHER_CLASSPATH = "classpath";
+
+	/**
+	 * Pass the classpath on a Java argument file. Requires a Java 9 or newer jvm.
+	 */
+	public static final String LAUNCHER_ARGFILE = "argfile";
+
+	/**
+	 * Pass the classpath on the manifest of an empty jar. The <code>java.class.path</code> property of the process 
+	 * only contains that jar.
+	 */
+	public static final String LAUNCHER_JAR = "jar";
+
+	/**
+	 * Use an argument file for long classpaths, when the jvm supports it, or the command line otherwise.
+	 */
+	public static final String LAUNCHER_AUTO = "auto";
+
+	private static final int LONG_CLASSPATH = 4096;
+
 	private String mainClass;
 
 	private List<File> classpath = new ArrayList<File>();
@@ -61,6 +99,10 @@ public class JavaCommand
 
 	private List<ClassPathProcessor> classPathProcessors = new ArrayList<ClassPathProcessor>();
 
+	private String launcher = LAUNCHER_CLASSPATH;
+
+	private File launcherDirectory;
+
 	/**
 	 * A plexus-util StreamConsumer to redirect messages to plugin log
 	 */
@@ -203,6 +245,37 @@ public class JavaCommand
 		return this;
 	}
 
+	public String getLauncher()
+	{
+		return launcher;
+	}
+
+	/**
+	 * How the classpath is given to the process: {@link #LAUNCHER_CLASSPATH}, {@link #LAUNCHER_ARGFILE},
+	 * {@link #LAUNCHER_JAR} or {@link #LAUNCHER_AUTO}. The launcher files are only used when a 
+	 * {@link #setLauncherDirectory(File) launcher directory} is set.
+	 */
+	public JavaCommand setLauncher(String launcher)
+	{
+		this.launcher = launcher;
+		return this;
+	}
+
+	public File getLauncherDirectory()
+	{
+		return launcherDirectory;
+	}
+
+	/**
+	 * Folder where the launcher files are written. Files are named by the hash of their content, so they are 
+	 * reused while the classpath does not change.
+	 */
+	public JavaCommand setLauncherDirectory(File launcherDirectory)
+	{
+		this.launcherDirectory = launcherDirectory;
+		return this;
+	}
+
 	public JavaCommand setOut(StreamConsumer out)
 	{
 		this.out = out;
@@ -278,13 +351,7 @@ public class JavaCommand
 		{
 			command.addAll(this.jvmArgs);
 		}
-		command.add("-classpath");
-		List<String> path = new ArrayList<String>(classpath.size());
-		for (File file : classpath)
-		{
-			path.add(file.getAbsolutePath());
-		}
-		command.add(StringUtils.join(path.iterator(), File.pathSeparator));
+		command.addAll(getClasspathArguments());
 		if (systemProperties != null)
 		{
 			for (Map.Entry<?, ?> entry : systemProperties.entrySet())
@@ -336,6 +403,165 @@ public class JavaCommand
 		}
 	}
 
+	private List<String> getClasspathArguments() throws JavaCommandException
+	{
+		List<String> path = new ArrayList<String>(classpath.size());
+		for (File file : classpath)
+		{
+			path.add(file.getAbsolutePath());
+		}
+		String joinedPath = StringUtils.join(path.iterator(), File.pathSeparator);
+
+		String mode = launcher;
+		if (launcherDirectory == null || StringUtils.isEmpty(mode))
+		{
+			mode = LAUNCHER_CLASSPATH;
+		}
+		else if (LAUNCHER_AUTO.equals(mode))
+		{
+			mode = (joinedPath.length() > LONG_CLASSPATH && supportsArgumentFiles()) ? LAUNCHER_ARGFILE : LAUNCHER_CLASSPATH;
+		}
+
+		try
+		{
+			if (LAUNCHER_ARGFILE.equals(mode))
+			{
+				// inside quotes, argument files use backslash as escape character
+				String content = "-classpath\n\"" + joinedPath.replace("\\", "\\\\").replace("\"", "\\\"") + "\"\n";
+				File argumentFile = writeLauncherFile(content.getBytes(Charset.defaultCharset()), ".args");
+				return Collections.singletonList("@" + argumentFile.getAbsolutePath());
+			}
+			if (LAUNCHER_JAR.equals(mode))
+			{
+				File pathingJar = writeLauncherFile(createPathingJar(), ".jar");
+				return Arrays.asList("-classpath", pathingJar.getAbsolutePath());
+			}
+		}
+		catch (IOException e)
+		{
+			throw new JavaCommandException("Failed to write the classpath launcher file", e);
+		}
+		if (!LAUNCHER_CLASSPATH.equals(mode))
+		{
+			throw new JavaCommandException("Unknown launcher: " + launcher + ". Use " + LAUNCHER_AUTO + ", " + LAUNCHER_CLASSPATH 
+				+ ", " + LAUNCHER_ARGFILE + " or " + LAUNCHER_JAR + ".");
+		}
+		return Arrays.asList("-classpath", joinedPath);
+	}
+
+	/**
+	 * Create a jar with no entries, whose manifest references the classpath.
+	 */
+	private byte[] createPathingJar() throws IOException
+	{
+		StringBuilder manifestClasspath = new StringBuilder();
+		for (File file : classpath)
+		{
+			String url = file.getAbsoluteFile().toURI().toString();
+			if (!file.isFile() && !url.endsWith("/"))
+			{
+				// folders must end with a slash, or they are taken as jars
+				url += "/";
+			}
+			if (manifestClasspath.length() > 0)
+			{
+				manifestClasspath.append(' ');
+			}
+			manifestClasspath.append(url);
+		}
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, manifestClasspath.toString());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JarOutputStream jar = new JarOutputStream(bytes, manifest);
+		jar.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Write a launcher file named by the hash of its content, unless it was already written.
+	 */
+	private File writeLauncherFile(byte[] content, String extension) throws IOException
+	{
+		File file = new File(launcherDirectory, "classpath-" + hash(content) + extension);
+		if (file.isFile() && file.length() == content.length)
+		{
+			log.debug("Reusing classpath launcher file " + file.getAbsolutePath());
+			return file;
+		}
+		launcherDirectory.mkdirs();
+		File tempFile = File.createTempFile("classpath", extension, launcherDirectory);
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try
+		{
+			out.write(content);
+		}
+		finally
+		{
+			out.close();
+		}
+		// other builds running on the same folder write the same content
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		log.debug("Classpath launcher file written: " + file.getAbsolutePath());
+		return file;
+	}
+
+	private static String hash(byte[] content) throws IOException
+	{
+		try
+		{
+			StringBuilder result = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(content))
+			{
+				result.append(String.format("%02x", b & 0xFF));
+			}
+			return result.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Argument files are supported since Java 9. The version of the jvm is read from its <code>release</code> 
+	 * file, so no process is started to find it.
+	 */
+	private boolean supportsArgumentFiles() throws JavaCommandException
+	{
+		File javaHome = new File(getJavaCommand()).getAbsoluteFile().getParentFile().getParentFile();
+		File releaseFile = (javaHome == null) ? null : new File(javaHome, "release");
+		if (releaseFile == null || !releaseFile.isFile())
+		{
+			return false;
+		}
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(releaseFile), "UTF-8"));
+			try
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					if (line.startsWith("JAVA_VERSION="))
+					{
+						String version = line.substring("JAVA_VERSION=".length()).replace("\"", "").trim();
+						return version.length() > 0 && !version.startsWith("1.");
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException e)
+		{
+			log.debug("Can not read the jvm release file: " + e.getMessage());
+		}
+		return false;
+	}
+
 	private String getJavaCommand() throws JavaCommandException
 	{
 		if (StringUtils.isEmpty(jvm))